@@ -18,6 +18,15 @@ public final class AppConfig {
     public static final String DB_NAME = dotenv.get("DB_NAME", "securechat");
     public static final String COL_USERS = "users";
     public static final String COL_MESSAGES = "messages";
+    public static final String COL_CONVERSATIONS = "conversations";
+    public static final String COL_SESSION_EPOCHS = "session_epochs";
+    public static final String COL_MIGRATIONS = "migrations";
+
+    // Chế độ session key (tùy chọn): 1 root key cho mỗi epoch hội thoại, khóa từng tin dẫn xuất bằng HKDF.
+    // Epoch đổi sau SESSION_EPOCH_MESSAGES tin hoặc SESSION_EPOCH_SECONDS giây, tùy điều kiện nào tới trước.
+    public static final boolean SESSION_KEYS = Boolean.parseBoolean(dotenv.get("SESSION_KEYS", "false"));
+    public static final int SESSION_EPOCH_MESSAGES = Integer.parseInt(dotenv.get("SESSION_EPOCH_MESSAGES", "100"));
+    public static final long SESSION_EPOCH_SECONDS = Long.parseLong(dotenv.get("SESSION_EPOCH_SECONDS", "86400"));
 
     public static String getUri() {
         return dotenv.get("MONGODB_URI");
@@ -13,11 +13,15 @@ public final class MongoProvider {
 
     private MongoProvider() {}
 
-    public static synchronized MongoDatabase db() {
+    public static synchronized MongoClient client() {
         if (client == null) {
             client = MongoClients.create(AppConfig.getUri());
         }
-        return client.getDatabase(AppConfig.DB_NAME);
+        return client;
+    }
+
+    public static MongoDatabase db() {
+        return client().getDatabase(AppConfig.DB_NAME);
     }
 
     public static synchronized void close() {
@@ -0,0 +1,30 @@
+package com.securechat.dao;
+
+import com.securechat.security.B64;
+import org.bson.Document;
+import org.bson.types.Binary;
+
+/**
+ * Đọc/ghi các field byte[] của document.
+ * Schema mới lưu BSON Binary, schema cũ lưu chuỗi Base64 (ví dụ "ivB64")
+ * -> đọc được cả hai để không phải chờ migrate xong.
+ */
+public final class BinaryFields {
+    private BinaryFields() {}
+
+    public static Binary of(byte[] b) {
+        return new Binary(b);
+    }
+
+    public static byte[] get(Document d, String binField, String legacyB64Field) {
+        Object v = d.get(binField);
+        if (v instanceof Binary bin) {
+            return bin.getData();
+        }
+        if (v instanceof byte[] raw) {
+            return raw;
+        }
+        String b64 = d.getString(legacyB64Field);
+        return (b64 != null) ? B64.dec(b64) : null;
+    }
+}
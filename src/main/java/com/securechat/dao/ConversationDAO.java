@@ -0,0 +1,110 @@
+package com.securechat.dao;
+
+import com.securechat.config.AppConfig;
+import com.securechat.config.MongoProvider;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bảng tóm tắt hội thoại: 1 document cho mỗi cặp (owner, partner).
+ * Cập nhật mỗi lần gửi tin -> danh bạ gần đây và số tin chưa đọc chỉ cần
+ * 1 query có index, không phải distinct trên toàn bộ hộp thư.
+ */
+public class ConversationDAO {
+
+    // Các messageId đã ghi nhận gần nhất (chống tăng unread 2 lần khi batch chạy lại)
+    private static final String FIELD_RECENT_IDS = "recentMsgIds";
+    private static final int RECENT_IDS = 16;
+
+    public ConversationDAO() {
+        createIndexes();
+    }
+
+    private MongoCollection<Document> col() {
+        return MongoProvider.db().getCollection(AppConfig.COL_CONVERSATIONS);
+    }
+
+    private void createIndexes() {
+        try {
+            MongoCollection<Document> c = col();
+            c.createIndex(Indexes.ascending("owner", "partner"), new IndexOptions().name("idx_conv_pair").unique(true));
+            c.createIndex(Indexes.compoundIndex(Indexes.ascending("owner"), Indexes.descending("lastTs")), new IndexOptions().name("idx_conv_recent"));
+        } catch (Exception e) {
+            System.out.println("Index creation warning: " + e.getMessage());
+        }
+    }
+
+    private static Bson pair(String owner, String partner) {
+        return Filters.and(Filters.eq("owner", owner), Filters.eq("partner", partner));
+    }
+
+    /**
+     * Ghi nhận tin mới nhất của hội thoại (upsert), đưa vào batch của lần gửi.
+     * Idempotent: document nhớ RECENT_IDS messageId gần nhất, chạy lại (retry) với id đã có
+     * thì không tăng unread lần nữa.
+     * @param incoming true nếu là tin người khác gửi tới owner -> tăng unread
+     */
+    public void recordMessage(WriteBatch batch, String owner, String partner, String lastFrom, long ts, ObjectId messageId, boolean incoming) {
+        batch.updateOne(AppConfig.COL_CONVERSATIONS, pair(owner, partner),
+                recordUpdate(lastFrom, ts, messageId, incoming), true);
+    }
+
+    // Update pipeline: mọi điều kiện dựa trên giá trị hiện có của document (chưa có -> upsert)
+    private static List<Bson> recordUpdate(String lastFrom, long ts, ObjectId messageId, boolean incoming) {
+        Document recent = new Document("$ifNull", List.of("$" + FIELD_RECENT_IDS, List.of()));
+        Document seen = new Document("$in", List.of(messageId, recent));
+        Document unread = new Document("$ifNull", List.of("$unread", 0));
+        // ts là đồng hồ client của người gửi và các lần gửi chạy song song: tin đến muộn / chạy lại
+        // không được kéo hội thoại lùi về quá khứ -> lastTs lấy max, lastFrom / lastMsgId chỉ đổi khi tin mới hơn
+        Document newer = new Document("$gte", List.of(ts, new Document("$ifNull", List.of("$lastTs", Long.MIN_VALUE))));
+        Document set = new Document("lastTs", new Document("$max", List.of(ts, "$lastTs")))
+                .append("lastFrom", new Document("$cond", List.of(newer, new Document("$literal", lastFrom), "$lastFrom")))
+                .append("lastMsgId", new Document("$cond", List.of(newer, messageId, "$lastMsgId")))
+                .append("unread", incoming
+                        ? new Document("$cond", List.of(seen, unread, new Document("$add", List.of(unread, 1))))
+                        : unread)
+                .append(FIELD_RECENT_IDS, new Document("$cond", List.of(seen, recent,
+                        new Document("$slice", List.of(
+                                new Document("$concatArrays", List.of(recent, List.of(messageId))), -RECENT_IDS)))));
+        return List.of(new Document("$set", set));
+    }
+
+    // Các partner, sắp xếp theo hoạt động gần nhất
+    public List<String> findPartners(String owner) {
+        List<String> out = new ArrayList<>();
+        col().find(Filters.eq("owner", owner))
+                .projection(Projections.include("partner"))
+                .sort(Sorts.descending("lastTs"))
+                .forEach(d -> out.add(d.getString("partner")));
+        return out;
+    }
+
+    public Map<String, Integer> getUnreadCounts(String owner) {
+        Map<String, Integer> out = new LinkedHashMap<>();
+        col().find(Filters.and(Filters.eq("owner", owner), Filters.gt("unread", 0)))
+                .projection(Projections.include("partner", "unread"))
+                .sort(Sorts.descending("lastTs"))
+                .forEach(d -> out.put(d.getString("partner"), d.getInteger("unread", 0)));
+        return out;
+    }
+
+    public void markRead(String owner, String partner) {
+        col().updateOne(Filters.and(pair(owner, partner), Filters.gt("unread", 0)), Updates.set("unread", 0));
+    }
+
+    public void delete(String owner, String partner) {
+        col().deleteOne(pair(owner, partner));
+    }
+}
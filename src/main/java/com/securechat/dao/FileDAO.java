@@ -2,15 +2,36 @@ package com.securechat.dao;
 
 import com.securechat.config.MongoProvider;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
 import org.bson.Document;
+import java.io.IOException;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
 
 public class FileDAO {
-    private static final String COL_FILES = "file_store";
+    public static final String COL_FILES = "file_store";
+    public static final int SCHEMA_BINARY = 2;
+    public static final String FIELD_SCHEMA = "v";
+    public static final String FIELD_BLOB = "blob";
+    public static final String LEGACY_DATA = "data";
+
+    // Schema v3: file chia chunk, header nằm trong file_store, các chunk nằm ở file_chunks
+    public static final String COL_CHUNKS = "file_chunks";
+    public static final int SCHEMA_CHUNKED = 3;
+    public static final String FIELD_CHUNK_SIZE = "chunkSize";
+    public static final String FIELD_CHUNKS = "chunks";
+    public static final String FIELD_SIZE = "size";
+
+    // Callback nhận từng chunk theo thứ tự index
+    @FunctionalInterface
+    public interface ChunkConsumer {
+        void accept(int index, byte[] data) throws IOException;
+    }
 
     public FileDAO() {
         // Tạo chỉ mục TTL (Time To Live) cho MongoDB
@@ -19,6 +40,10 @@ public class FileDAO {
             MongoCollection<Document> col = MongoProvider.db().getCollection(COL_FILES);
             IndexOptions indexOptions = new IndexOptions().expireAfter(0L, TimeUnit.SECONDS);
             col.createIndex(Indexes.ascending("expireAt"), indexOptions);
+
+            MongoCollection<Document> chunks = MongoProvider.db().getCollection(COL_CHUNKS);
+            chunks.createIndex(Indexes.ascending("expireAt"), indexOptions);
+            chunks.createIndex(Indexes.ascending("fileId", "n"), new IndexOptions().unique(true).name("idx_file_chunk"));
         } catch (Exception e) {
          
         }
@@ -28,21 +53,73 @@ public class FileDAO {
         return MongoProvider.db().getCollection(COL_FILES);
     }
 
-    public void saveFile(String fileId, String encryptedBase64, long ttlSeconds) {
+    private MongoCollection<Document> chunksCol() {
+        return MongoProvider.db().getCollection(COL_CHUNKS);
+    }
+
+    private static Date expireAt(long ttlSeconds) {
+        return (ttlSeconds > 0) ? new Date(System.currentTimeMillis() + (ttlSeconds * 1000)) : null;
+    }
+
+    // Đọc được cả file mới (Binary "blob") lẫn file cũ (Base64 "data")
+    public byte[] getFileBytes(String fileId) {
+        Document doc = col().find(Filters.eq("_id", fileId)).first();
+        return (doc != null) ? BinaryFields.get(doc, FIELD_BLOB, LEGACY_DATA) : null;
+    }
+
+    public Document getFileHeader(String fileId) {
+        return col().find(Filters.eq("_id", fileId))
+                .projection(Projections.exclude(FIELD_BLOB, LEGACY_DATA))
+                .first();
+    }
+
+    public void saveChunk(String fileId, int index, byte[] encrypted, long ttlSeconds) {
+        Document doc = new Document("fileId", fileId)
+                .append("n", index)
+                .append(FIELD_BLOB, BinaryFields.of(encrypted));
+        Date exp = expireAt(ttlSeconds);
+        if (exp != null) {
+            doc.append("expireAt", exp);
+        }
+        chunksCol().insertOne(doc);
+    }
+
+    // Ghi header SAU khi đã ghi đủ chunk -> người nhận không bao giờ thấy file dở dang
+    public void saveChunkedHeader(String fileId, int chunkSize, int chunkCount, long size, long ttlSeconds) {
         Document doc = new Document("_id", fileId)
-                .append("data", encryptedBase64)
+                .append(FIELD_SCHEMA, SCHEMA_CHUNKED)
+                .append(FIELD_CHUNK_SIZE, chunkSize)
+                .append(FIELD_CHUNKS, chunkCount)
+                .append(FIELD_SIZE, size)
                 .append("uploadedAt", System.currentTimeMillis());
-        
-        // Nếu có TTL, tính thời gian hết hạn
-        if (ttlSeconds > 0) {
-            doc.append("expireAt", new Date(System.currentTimeMillis() + (ttlSeconds * 1000)));
+        Date exp = expireAt(ttlSeconds);
+        if (exp != null) {
+            doc.append("expireAt", exp);
         }
-        
         col().insertOne(doc);
     }
 
-    public String getFileContent(String fileId) {
-        Document doc = col().find(Filters.eq("_id", fileId)).first();
-        return (doc != null) ? doc.getString("data") : null;
+    /**
+     * Đọc lần lượt các chunk theo index; batch nhỏ để driver chỉ giữ vài chunk trên heap.
+     * @return số chunk đã đọc
+     */
+    public int streamChunks(String fileId, ChunkConsumer consumer) throws IOException {
+        int count = 0;
+        try (MongoCursor<Document> cur = chunksCol().find(Filters.eq("fileId", fileId))
+                .sort(Sorts.ascending("n"))
+                .batchSize(2)
+                .iterator()) {
+            while (cur.hasNext()) {
+                Document d = cur.next();
+                consumer.accept(d.getInteger("n"), BinaryFields.get(d, FIELD_BLOB, LEGACY_DATA));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void deleteFile(String fileId) {
+        chunksCol().deleteMany(Filters.eq("fileId", fileId));
+        col().deleteOne(Filters.eq("_id", fileId));
     }
 }
\ No newline at end of file
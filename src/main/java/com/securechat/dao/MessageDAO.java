@@ -2,20 +2,64 @@ package com.securechat.dao;
 
 import com.securechat.config.AppConfig;
 import com.securechat.config.MongoProvider;
+import com.mongodb.client.ChangeStreamIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class MessageDAO {
 
+    // Schema v2: ephPub/iv/ciphertext lưu dạng BSON Binary thay cho chuỗi Base64
+    public static final int SCHEMA_BINARY = 2;
+    public static final String FIELD_SCHEMA = "v";
+    public static final String FIELD_EPH_PUB = "ephPub";
+    public static final String FIELD_IV = "iv";
+    public static final String FIELD_CIPHERTEXT = "ciphertext";
+    public static final String LEGACY_EPH_PUB = "ephPubB64";
+    public static final String LEGACY_IV = "ivB64";
+    public static final String LEGACY_CIPHERTEXT = "ciphertextB64";
+
+    // Schema v3 (envelope): 1 document cho cả người nhận lẫn người gửi.
+    // "to" là mảng [receiver, sender], payload mã hóa 1 lần bằng content key,
+    // content key được wrap riêng cho từng người trong mảng "keys".
+    public static final int SCHEMA_ENVELOPE = 3;
+    public static final String FIELD_KEYS = "keys";
+    public static final String FIELD_RCPT = "rcpt";
+    public static final String FIELD_WRAPPED = "wrapped";
+
+    // Schema v4 (session): như envelope nhưng không có "keys"; khóa tin dẫn xuất từ root key
+    // của epoch (collection session_epochs) theo số thứ tự idx, xem SessionKeys.
+    public static final int SCHEMA_SESSION = 4;
+    public static final String FIELD_EPOCH = "epochId";
+    public static final String FIELD_IDX = "idx";
+
+    // Khóa hội thoại chuẩn hóa: cặp username sắp xếp -> giống nhau cho cả 2 phía
+    public static final String FIELD_CONV_KEY = "convKey";
+
+    public static String convKey(String a, String b) {
+        return (a.compareTo(b) <= 0) ? a + "|" + b : b + "|" + a;
+    }
+
+    private static final int DELETE_BATCH = 1000;
+
     public MessageDAO() {
         createIndexes();
     }
@@ -29,6 +73,11 @@ public class MessageDAO {
             MongoCollection<Document> c = col();
             c.createIndex(Indexes.compoundIndex(Indexes.ascending("to"), Indexes.descending("ts")), new IndexOptions().name("idx_inbox"));
             c.createIndex(Indexes.compoundIndex(Indexes.ascending("from"), Indexes.descending("ts")), new IndexOptions().name("idx_sent"));
+            c.createIndex(Indexes.compoundIndex(
+                    Indexes.ascending("to", FIELD_CONV_KEY),
+                    Indexes.descending("ts", "_id")), new IndexOptions().name("idx_conv"));
+            // Chỉ tin session (v4) có epochId
+            c.createIndex(Indexes.ascending(FIELD_EPOCH), new IndexOptions().name("idx_epoch").sparse(true));
 
             IndexOptions ttlOptions = new IndexOptions()
                     .name("idx_auto_delete")
@@ -45,6 +94,11 @@ public class MessageDAO {
         col().insertOne(msgDoc);
     }
 
+    // _id phải được sinh sẵn phía client để batch chạy lại không tạo bản sao
+    public void insertMessage(WriteBatch batch, Document msgDoc) {
+        batch.insert(AppConfig.COL_MESSAGES, msgDoc);
+    }
+
     public List<String> getContactsFromMessages(String myUsername) {
         List<String> senders = col().distinct("from", Filters.eq("to", myUsername), String.class).into(new ArrayList<>());
         List<String> receivers = col().distinct("originalTo", Filters.eq("from", myUsername), String.class).into(new ArrayList<>());
@@ -54,31 +108,122 @@ public class MessageDAO {
                      .collect(Collectors.toList());
     }
 
+    // Hộp thư của mình với 1 partner. Document cũ chưa backfill convKey vẫn khớp qua nhánh convKey == null.
+    private static Bson conversation(String myUsername, String partnerUsername) {
+        return Filters.and(
+                Filters.eq("to", myUsername),
+                Filters.or(
+                        Filters.eq(FIELD_CONV_KEY, convKey(myUsername, partnerUsername)),
+                        Filters.and(
+                                Filters.eq(FIELD_CONV_KEY, null),
+                                Filters.or(Filters.eq("from", partnerUsername), Filters.eq("originalTo", partnerUsername)))));
+    }
+
+    // "limit" tin MỚI NHẤT, trả về theo thứ tự thời gian tăng dần
     public List<Document> findConversation(String myUsername, String partnerUsername, int limit) {
+        return findConversationBefore(myUsername, partnerUsername, Long.MAX_VALUE, null, limit);
+    }
+
+    /**
+     * Phân trang keyset ngược về quá khứ: "limit" tin ngay trước cursor (beforeTs, beforeId).
+     * @return theo thứ tự thời gian tăng dần
+     */
+    public List<Document> findConversationBefore(String myUsername, String partnerUsername, long beforeTs, String beforeId, int limit) {
+        Bson cursor = (beforeId != null)
+                ? Filters.or(
+                        Filters.lt("ts", beforeTs),
+                        Filters.and(Filters.eq("ts", beforeTs), Filters.lt("_id", new ObjectId(beforeId))))
+                : Filters.lt("ts", beforeTs);
         List<Document> out = new ArrayList<>();
-        col().find(Filters.and(
-                    Filters.eq("to", myUsername),
-                    Filters.or(Filters.eq("from", partnerUsername), Filters.eq("originalTo", partnerUsername))
-                ))
-                .sort(Sorts.ascending("ts")) 
+        col().find(Filters.and(conversation(myUsername, partnerUsername), cursor))
+                .sort(Sorts.descending("ts", "_id"))
                 .limit(limit)
                 .into(out);
+        Collections.reverse(out);
         return out;
     }
-    
-    public void deleteConversation(String myUsername, String partnerUsername) {
-        col().deleteMany(Filters.and(
+
+    // Chỉ lấy các tin mới hơn cursor (ts, _id) -> polling không phải tải lại cả hội thoại
+    public List<Document> findConversationSince(String myUsername, String partnerUsername, long afterTs, String afterId) {
+        Bson cursor = (afterId != null)
+                ? Filters.or(
+                        Filters.gt("ts", afterTs),
+                        Filters.and(Filters.eq("ts", afterTs), Filters.gt("_id", new ObjectId(afterId))))
+                : Filters.gt("ts", afterTs);
+        List<Document> out = new ArrayList<>();
+        col().find(Filters.and(conversation(myUsername, partnerUsername), cursor))
+                .sort(Sorts.ascending("ts", "_id"))
+                .into(out);
+        return out;
+    }
+
+    /**
+     * @return epochId của các tin session đã đụng tới -> caller dọn epoch không còn được tham chiếu
+     */
+    public Set<ObjectId> deleteConversation(String myUsername, String partnerUsername) {
+        Bson mine = Filters.and(
             Filters.eq("to", myUsername), // Quan trọng: Chỉ xóa tin trong hộp thư của mình
             Filters.or(
                 Filters.eq("from", partnerUsername),      // Tin họ gửi đến
                 Filters.eq("originalTo", partnerUsername) // Tin mình gửi đi (bản lưu)
             )
-        ));
+        );
+
+        // 1. Schema cũ: mỗi người một bản -> xóa bản của mình
+        col().deleteMany(Filters.and(mine, Filters.nin(FIELD_SCHEMA, SCHEMA_ENVELOPE, SCHEMA_SESSION)));
+
+        // 2. Envelope / session dùng chung với người kia -> chỉ gỡ mình (và khóa của mình) khỏi document.
+        //    Lấy _id trước (qua idx_inbox) để bước 3 chỉ đụng đúng các document vừa sửa, không quét cả collection.
+        List<ObjectId> shared = new ArrayList<>();
+        Set<ObjectId> epochs = new HashSet<>();
+        col().find(Filters.and(mine, Filters.in(FIELD_SCHEMA, SCHEMA_ENVELOPE, SCHEMA_SESSION)))
+                .projection(Projections.include("_id", FIELD_EPOCH))
+                .forEach(d -> {
+                    shared.add(d.getObjectId("_id"));
+                    ObjectId epoch = d.getObjectId(FIELD_EPOCH);
+                    if (epoch != null) epochs.add(epoch);
+                });
+        for (int i = 0; i < shared.size(); i += DELETE_BATCH) {
+            List<ObjectId> ids = shared.subList(i, Math.min(i + DELETE_BATCH, shared.size()));
+            col().updateMany(Filters.in("_id", ids),
+                    Updates.combine(
+                            Updates.pull("to", myUsername),
+                            Updates.pull(FIELD_KEYS, new Document(FIELD_RCPT, myUsername))));
+
+            // 3. Không còn ai giữ document -> xóa hẳn
+            col().deleteMany(Filters.and(Filters.in("_id", ids), Filters.size("to", 0)));
+        }
+        return epochs;
+    }
+
+    // Các epoch trong danh sách vẫn còn tin tham chiếu (idx_epoch)
+    public Set<ObjectId> findReferencedEpochs(Collection<ObjectId> epochIds) {
+        if (epochIds.isEmpty()) return Set.of();
+        return col().distinct(FIELD_EPOCH, Filters.in(FIELD_EPOCH, epochIds), ObjectId.class).into(new HashSet<>());
     }
     
-    public List<String> getSendersSince(String myUsername, long lastCheckTime) {
-        return col().distinct("from", 
-                Filters.and(Filters.eq("to", myUsername), Filters.gt("ts", lastCheckTime)), String.class)
-                .into(new ArrayList<>());
+    // Change stream: chỉ các tin mới được insert vào hộp thư của mình.
+    // $project bỏ ciphertext -> sự kiện chỉ vài chục byte.
+    public ChangeStreamIterable<Document> watchInbox(String myUsername, BsonDocument resumeToken) {
+        List<Bson> pipeline = List.of(
+                Aggregates.match(Filters.and(
+                        Filters.eq("operationType", "insert"),
+                        Filters.eq("fullDocument.to", myUsername))),
+                Aggregates.project(Projections.include(
+                        "operationType", "ns", "documentKey", "clusterTime",
+                        "fullDocument.from", "fullDocument.originalTo", "fullDocument.ts")));
+        ChangeStreamIterable<Document> it = col().watch(pipeline);
+        return (resumeToken != null) ? it.resumeAfter(resumeToken) : it;
+    }
+
+    // Dùng khi server không hỗ trợ change stream (polling dự phòng)
+    public List<Document> findInboxSince(String myUsername, long afterTs, int limit) {
+        List<Document> out = new ArrayList<>();
+        col().find(Filters.and(Filters.eq("to", myUsername), Filters.gt("ts", afterTs)))
+                .projection(Projections.include("from", "originalTo", "ts"))
+                .sort(Sorts.ascending("ts"))
+                .limit(limit)
+                .into(out);
+        return out;
     }
 }
\ No newline at end of file
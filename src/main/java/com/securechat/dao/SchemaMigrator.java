@@ -0,0 +1,181 @@
+package com.securechat.dao;
+
+import com.securechat.config.AppConfig;
+import com.securechat.config.MongoProvider;
+import com.securechat.security.B64;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Field;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.MergeOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Migrate dần các document cũ ở background:
+ * Base64 string -> schema Binary, bổ sung convKey cho message cũ, dựng bảng conversations từ tin cũ.
+ * - Đọc bằng cursor theo batch, ghi bằng bulkWrite không thứ tự -> bộ nhớ phẳng.
+ * - Filter luôn kèm điều kiện "field cũ còn tồn tại" nên chạy lại / nhiều client
+ *   chạy cùng lúc cũng không sao (idempotent).
+ */
+public final class SchemaMigrator {
+    private SchemaMigrator() {}
+
+    private static final int BATCH_SIZE = 200;
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+    // Đánh dấu trong collection migrations khi đã dựng xong bảng tóm tắt từ tin cũ
+    private static final String CONVERSATIONS_BACKFILL = "conversations_backfill";
+    private static volatile boolean conversationsBackfilled = false;
+
+    // Chỉ chạy một lần cho mỗi tiến trình
+    public static void startInBackground() {
+        if (!started.compareAndSet(false, true)) return;
+        Thread.ofVirtual().name("schema-migrator").start(() -> {
+            try {
+                long msgs = migrateMessages();
+                long files = migrateFiles();
+                if (msgs + files > 0) {
+                    System.out.println("Schema migration: " + msgs + " messages, " + files + " files converted to Binary");
+                }
+                long keys = backfillConvKeys();
+                if (keys > 0) {
+                    System.out.println("Schema migration: convKey added to " + keys + " messages");
+                }
+                if (backfillConversations()) {
+                    System.out.println("Schema migration: conversations summary built from existing messages");
+                }
+            } catch (Exception e) {
+                System.out.println("Schema migration warning: " + e.getMessage());
+            }
+        });
+    }
+
+    public static long migrateMessages() {
+        MongoCollection<Document> col = MongoProvider.db().getCollection(AppConfig.COL_MESSAGES);
+        Bson legacy = Filters.exists(MessageDAO.LEGACY_CIPHERTEXT);
+        return migrate(col, legacy,
+                Projections.include(MessageDAO.LEGACY_EPH_PUB, MessageDAO.LEGACY_IV, MessageDAO.LEGACY_CIPHERTEXT),
+                d -> Updates.combine(
+                        Updates.set(MessageDAO.FIELD_SCHEMA, MessageDAO.SCHEMA_BINARY),
+                        Updates.set(MessageDAO.FIELD_EPH_PUB, toBinary(d, MessageDAO.LEGACY_EPH_PUB)),
+                        Updates.set(MessageDAO.FIELD_IV, toBinary(d, MessageDAO.LEGACY_IV)),
+                        Updates.set(MessageDAO.FIELD_CIPHERTEXT, toBinary(d, MessageDAO.LEGACY_CIPHERTEXT)),
+                        Updates.unset(MessageDAO.LEGACY_EPH_PUB),
+                        Updates.unset(MessageDAO.LEGACY_IV),
+                        Updates.unset(MessageDAO.LEGACY_CIPHERTEXT)), BATCH_SIZE);
+    }
+
+    // convKey = cặp (from, người nhận thật) đã sắp xếp, xem MessageDAO.convKey
+    public static long backfillConvKeys() {
+        MongoCollection<Document> col = MongoProvider.db().getCollection(AppConfig.COL_MESSAGES);
+        Bson missing = Filters.exists(MessageDAO.FIELD_CONV_KEY, false);
+        return migrate(col, missing, Projections.include("from", "to", "originalTo"),
+                d -> {
+                    String realTo = (d.getString("originalTo") != null) ? d.getString("originalTo") : d.getString("to");
+                    return Updates.set(MessageDAO.FIELD_CONV_KEY, MessageDAO.convKey(d.getString("from"), realTo));
+                }, BATCH_SIZE);
+    }
+
+    /**
+     * Dựng bảng conversations từ tin gửi trước khi có bảng này (1 lần cho mỗi DB).
+     * Mỗi (owner, partner) lấy tin mới nhất; $merge keepExisting -> summary do lần gửi mới ghi
+     * (luôn mới hơn) không bị ghi đè. Chạy lại / nhiều client chạy cùng lúc cũng không sao.
+     * @return false nếu đã chạy trước đó
+     */
+    public static boolean backfillConversations() {
+        if (isConversationsBackfilled()) return false;
+        MongoProvider.db().getCollection(AppConfig.COL_MESSAGES).aggregate(List.of(
+                Aggregates.project(Projections.include("from", "to", "originalTo", "ts")),
+                // "to" là string (schema cũ) hoặc mảng người nhận (envelope / session)
+                Aggregates.unwind("$to"),
+                Aggregates.addFields(new Field<>("partner", new Document("$cond", List.of(
+                        new Document("$eq", List.of("$from", "$to")),
+                        new Document("$ifNull", List.of("$originalTo", "$to")),
+                        "$from")))),
+                Aggregates.match(Filters.ne("partner", null)),
+                Aggregates.sort(Sorts.descending("ts")),
+                Aggregates.group(new Document("owner", "$to").append("partner", "$partner"),
+                        Accumulators.first("lastTs", "$ts"),
+                        Accumulators.first("lastFrom", "$from"),
+                        Accumulators.first("lastMsgId", "$_id")),
+                Aggregates.project(Projections.fields(Projections.excludeId(),
+                        Projections.computed("owner", "$_id.owner"),
+                        Projections.computed("partner", "$_id.partner"),
+                        Projections.include("lastTs", "lastFrom", "lastMsgId"),
+                        Projections.computed("unread", new Document("$literal", 0)))),
+                Aggregates.merge(AppConfig.COL_CONVERSATIONS, new MergeOptions()
+                        .uniqueIdentifier(List.of("owner", "partner"))
+                        .whenMatched(MergeOptions.WhenMatched.KEEP_EXISTING)
+                        .whenNotMatched(MergeOptions.WhenNotMatched.INSERT))
+        )).allowDiskUse(true).toCollection();
+        MongoProvider.db().getCollection(AppConfig.COL_MIGRATIONS).updateOne(
+                Filters.eq("_id", CONVERSATIONS_BACKFILL),
+                Updates.set("doneAt", new Date()),
+                new UpdateOptions().upsert(true));
+        conversationsBackfilled = true;
+        return true;
+    }
+
+    // Chưa xong thì caller phải gộp thêm dữ liệu từ tin cũ (xem ChatService.getRecentContacts)
+    public static boolean isConversationsBackfilled() {
+        if (!conversationsBackfilled) {
+            conversationsBackfilled = MongoProvider.db().getCollection(AppConfig.COL_MIGRATIONS)
+                    .find(Filters.eq("_id", CONVERSATIONS_BACKFILL)).first() != null;
+        }
+        return conversationsBackfilled;
+    }
+
+    public static long migrateFiles() {
+        MongoCollection<Document> col = MongoProvider.db().getCollection(FileDAO.COL_FILES);
+        Bson legacy = Filters.exists(FileDAO.LEGACY_DATA);
+        // File lớn: batch nhỏ hơn để không giữ nhiều blob trên heap
+        return migrate(col, legacy, Projections.include(FileDAO.LEGACY_DATA),
+                d -> Updates.combine(
+                        Updates.set(FileDAO.FIELD_SCHEMA, FileDAO.SCHEMA_BINARY),
+                        Updates.set(FileDAO.FIELD_BLOB, toBinary(d, FileDAO.LEGACY_DATA)),
+                        Updates.unset(FileDAO.LEGACY_DATA)), 4);
+    }
+
+    private static long migrate(MongoCollection<Document> col, Bson legacy, Bson projection,
+                                Function<Document, Bson> update, int batchSize) {
+        long converted = 0;
+        List<WriteModel<Document>> batch = new ArrayList<>(batchSize);
+        try (MongoCursor<Document> cur = col.find(legacy).projection(projection).batchSize(batchSize).iterator()) {
+            while (cur.hasNext()) {
+                Document d = cur.next();
+                batch.add(new UpdateOneModel<>(Filters.and(Filters.eq("_id", d.get("_id")), legacy), update.apply(d)));
+                if (batch.size() >= batchSize) {
+                    converted += flush(col, batch);
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            converted += flush(col, batch);
+        }
+        return converted;
+    }
+
+    private static long flush(MongoCollection<Document> col, List<WriteModel<Document>> batch) {
+        long n = col.bulkWrite(batch, new BulkWriteOptions().ordered(false)).getModifiedCount();
+        batch.clear();
+        return n;
+    }
+
+    private static Object toBinary(Document d, String b64Field) {
+        return BinaryFields.of(B64.dec(d.getString(b64Field)));
+    }
+}
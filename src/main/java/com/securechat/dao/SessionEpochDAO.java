@@ -0,0 +1,56 @@
+package com.securechat.dao;
+
+import com.securechat.config.AppConfig;
+import com.securechat.config.MongoProvider;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Epoch của chế độ session key: 1 document cho mỗi root key.
+ * { _id, from, to, createdAt, keys: [{rcpt, ephPub, iv, wrapped}] } - "keys" cùng format với envelope
+ * (MessageDAO.FIELD_KEYS), root key được wrap riêng cho người nhận và người gửi.
+ * Chỉ tra cứu theo _id; index duy nhất là TTL trên expireAt (epoch của tin có TTL).
+ * Epoch không còn tin nào tham chiếu được dọn khi xóa hội thoại (xem ChatService.removeSavedContact).
+ */
+public class SessionEpochDAO {
+
+    public static final String FIELD_CREATED_AT = "createdAt";
+
+    public SessionEpochDAO() {
+        try {
+            col().createIndex(Indexes.ascending("expireAt"),
+                    new IndexOptions().name("idx_auto_delete").expireAfter(0L, TimeUnit.SECONDS));
+        } catch (Exception e) {
+            System.out.println("Index creation warning: " + e.getMessage());
+        }
+    }
+
+    private MongoCollection<Document> col() {
+        return MongoProvider.db().getCollection(AppConfig.COL_SESSION_EPOCHS);
+    }
+
+    // Ghi cùng batch với tin đầu tiên của epoch; _id sinh phía client nên chạy lại không tạo bản sao
+    public void insertEpoch(WriteBatch batch, Document epochDoc) {
+        batch.insert(AppConfig.COL_SESSION_EPOCHS, epochDoc);
+    }
+
+    // Nhiều epoch trong 1 query $in (giải mã cả trang lịch sử)
+    public List<Document> findByIds(Collection<ObjectId> ids) {
+        if (ids.isEmpty()) return List.of();
+        return col().find(Filters.in("_id", ids)).into(new ArrayList<>());
+    }
+
+    // Chỉ xóa epoch tạo trước createdBefore: epoch mới hơn có thể vẫn đang được máy khác dùng để gửi
+    public void deleteByIds(Collection<ObjectId> ids, long createdBefore) {
+        if (ids.isEmpty()) return;
+        col().deleteMany(Filters.and(Filters.in("_id", ids), Filters.lt(FIELD_CREATED_AT, createdBefore)));
+    }
+}
@@ -2,12 +2,21 @@ package com.securechat.dao;
 
 import com.securechat.config.AppConfig;
 import com.securechat.config.MongoProvider;
+import com.mongodb.client.ChangeStreamIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.Updates;
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import java.util.Collection;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 
 public class UserDAO {
 
@@ -16,15 +25,81 @@ public class UserDAO {
     public static final String FIELD_ENC_ADDRESS = "enc_address";
     public static final String FIELD_ENC_GENDER = "enc_gender";
     public static final String FIELD_ENC_AVATAR = "enc_avatar";
+    // Thumbnail đã mã hóa theo kích thước: { "35": Binary, "40": Binary, "80": Binary }
+    public static final String FIELD_AVATAR_THUMBS = "enc_avatar_thumbs";
+    // Đổi mỗi lần upload -> client so version để bỏ qua avatar không đổi
+    public static final String FIELD_AVATAR_VERSION = "avatarVersion";
+    // Cách dẫn xuất khóa từ mật khẩu: thiếu / 1 = PBKDF2 riêng cho hash và từng private key,
+    // 2 = KeyProtector.SCHEME_HIERARCHY (1 PBKDF2 + HKDF)
+    public static final String FIELD_KDF_SCHEME = "kdfScheme";
+
+    // Projection theo mục đích: không bao giờ kéo enc_avatar (có thể vài MB) trên đường nóng
+    public static final Bson PUBLIC_KEY_FIELDS = Projections.include("username", "signPubB64", "ecdhPubB64");
+    private static final Bson AUTH_FIELDS = Projections.include(
+            "username", FIELD_KDF_SCHEME, "pwdSaltB64", "pwdHashB64", "pwdIters", "failedAttempts", "lockoutUntil",
+            "signPubB64", "signPrivEncB64", "signPrivIvB64", "signPrivSaltKdfB64", "signPrivKdfIters",
+            "ecdhPubB64", "ecdhPrivEncB64", "ecdhPrivIvB64", "ecdhPrivSaltKdfB64", "ecdhPrivKdfIters");
+
+    public UserDAO() {
+        createIndexes();
+    }
 
     private MongoCollection<Document> col() {
         return MongoProvider.db().getCollection(AppConfig.COL_USERS);
     }
 
+    private void createIndexes() {
+        try {
+            col().createIndex(Indexes.ascending("username"), new IndexOptions().name("idx_username").unique(true));
+        } catch (Exception e) {
+            System.out.println("Index creation warning: " + e.getMessage());
+        }
+    }
+
+    // Toàn bộ document (kể cả avatar) - chỉ dùng khi thật sự cần
     public Document findByUsername(String username) {
         return col().find(Filters.eq("username", username)).first();
     }
 
+    // Chỉ khóa công khai (gửi tin, kiểm tra chữ ký)
+    public Document findPublicKeys(String username) {
+        return col().find(Filters.eq("username", username)).projection(PUBLIC_KEY_FIELDS).first();
+    }
+
+    // Các field cần cho đăng nhập / đổi mật khẩu
+    public Document findAuth(String username) {
+        return col().find(Filters.eq("username", username)).projection(AUTH_FIELDS).first();
+    }
+
+    /**
+     * Lấy nhiều user trong 1 round trip ($in), thay cho N lần findByUsername.
+     * @param usernames
+     * @param projection vd. PUBLIC_KEY_FIELDS, avatarThumbFields(35); "username" luôn được trả về
+     * @return các user tồn tại, không theo thứ tự đầu vào
+     */
+    public List<Document> findByUsernames(Collection<String> usernames, Bson projection) {
+        if (usernames.isEmpty()) return new ArrayList<>();
+        return col().find(Filters.in("username", usernames))
+                .projection(Projections.fields(Projections.include("username"), projection))
+                .into(new ArrayList<>());
+    }
+
+    public static Bson avatarThumbFields(int size) {
+        return Projections.include(FIELD_AVATAR_THUMBS + "." + size, FIELD_AVATAR_VERSION);
+    }
+
+    // Avatar gốc (AES của Base64) cho user chưa có thumbnail
+    public static Bson legacyAvatarFields() {
+        return Projections.include(FIELD_ENC_AVATAR, FIELD_AVATAR_VERSION);
+    }
+
+    public boolean exists(String username) {
+        return col().find(Filters.eq("username", username))
+                .projection(Projections.include("_id"))
+                .limit(1)
+                .first() != null;
+    }
+
     public void insertUser(Document userDoc) {
         col().insertOne(userDoc);
     }
@@ -47,20 +122,14 @@ public class UserDAO {
         col().updateOne(Filters.eq("username", username), Updates.set("lastLogout", System.currentTimeMillis()));
     }
 
-    public long getLastLogout(String username) {
-        Document doc = col().find(Filters.eq("username", username))
-                .projection(new Document("lastLogout", 1))
-                .first();
-        if (doc != null && doc.containsKey("lastLogout")) {
-            return doc.getLong("lastLogout");
-        }
-        return 0L;
-    }
-
     public void addContact(String myUsername, String partnerUsername) {
         col().updateOne(Filters.eq("username", myUsername), Updates.addToSet("contacts", partnerUsername));
     }
 
+    public void addContact(WriteBatch batch, String myUsername, String partnerUsername) {
+        batch.updateOne(AppConfig.COL_USERS, Filters.eq("username", myUsername), Updates.addToSet("contacts", partnerUsername), false);
+    }
+
     public List<String> getSavedContacts(String myUsername) {
         Document doc = col().find(Filters.eq("username", myUsername))
                 .projection(new Document("contacts", 1))
@@ -102,26 +171,39 @@ public class UserDAO {
         );
     }
 
-    public void updateUserCredentials(String username, String newSalt, String newHash,
-            String signEnc, String signIv, String signSalt, int signIter,
-            String ecdhEnc, String ecdhIv, String ecdhSalt, int ecdhIter) {
-        col().updateOne(
-                Filters.eq("username", username),
-                Updates.combine(
-                        Updates.set("pwdSaltB64", newSalt),
-                        Updates.set("pwdHashB64", newHash),
-                        // Cập nhật Signing Key mới
-                        Updates.set("signPrivEncB64", signEnc),
-                        Updates.set("signPrivIvB64", signIv),
-                        Updates.set("signPrivSaltKdfB64", signSalt),
-                        Updates.set("signPrivKdfIters", signIter),
-                        // Cập nhật ECDH Key mới
-                        Updates.set("ecdhPrivEncB64", ecdhEnc),
-                        Updates.set("ecdhPrivIvB64", ecdhIv),
-                        Updates.set("ecdhPrivSaltKdfB64", ecdhSalt),
-                        Updates.set("ecdhPrivKdfIters", ecdhIter)
-                )
-        );
+    /**
+     * Ghi bộ credential mới (hash/verifier + private key đã wrap), xem AuthService.credentialFields.
+     */
+    public void updateUserCredentials(String username, Document credentials) {
+        col().updateOne(Filters.eq("username", username), credentialUpdate(credentials));
+    }
+
+    /**
+     * Nâng cấp tài khoản scheme 1 lúc login: chỉ ghi nếu hash vẫn là hash vừa kiểm tra và tài khoản
+     * vẫn ở scheme 1 -> không ghi đè mật khẩu vừa được đổi ở thiết bị khác.
+     * @return false nếu không khớp (mật khẩu / scheme đã đổi trong lúc đó)
+     */
+    public boolean upgradeLegacyCredentials(String username, String verifiedHashB64, Document credentials) {
+        return col().updateOne(
+                Filters.and(
+                        Filters.eq("username", username),
+                        Filters.eq("pwdHashB64", verifiedHashB64),
+                        Filters.or(Filters.exists(FIELD_KDF_SCHEME, false), Filters.eq(FIELD_KDF_SCHEME, 1))),
+                credentialUpdate(credentials)
+        ).getMatchedCount() > 0;
+    }
+
+    // Scheme 2 không dùng salt / số vòng riêng của từng private key -> gỡ các field đó
+    private static Bson credentialUpdate(Document credentials) {
+        List<Bson> updates = new ArrayList<>();
+        credentials.forEach((k, v) -> updates.add(Updates.set(k, v)));
+        if (credentials.getInteger(FIELD_KDF_SCHEME, 1) != 1) {
+            updates.add(Updates.unset("signPrivSaltKdfB64"));
+            updates.add(Updates.unset("signPrivKdfIters"));
+            updates.add(Updates.unset("ecdhPrivSaltKdfB64"));
+            updates.add(Updates.unset("ecdhPrivKdfIters"));
+        }
+        return Updates.combine(updates);
     }
 
     public void updateUserProfile(String username, String encEmail, String encFullName, String encAddress, String encGender) {
@@ -162,8 +244,33 @@ public class UserDAO {
     }
 
 // Hàm lưu avatar
-    public void updateAvatar(String username, String encAvatarBase64) {
-        col().updateOne(Filters.eq("username", username), Updates.set(FIELD_ENC_AVATAR, encAvatarBase64));
+    public void updateAvatar(String username, String encAvatarBase64, Map<Integer, byte[]> encThumbs, long version) {
+        Document thumbs = new Document();
+        encThumbs.forEach((size, enc) -> thumbs.append(String.valueOf(size), BinaryFields.of(enc)));
+        col().updateOne(Filters.eq("username", username), Updates.combine(
+                Updates.set(FIELD_ENC_AVATAR, encAvatarBase64),
+                Updates.set(FIELD_AVATAR_THUMBS, thumbs),
+                Updates.set(FIELD_AVATAR_VERSION, version)));
+    }
+
+    // Chỉ lấy đúng 1 thumbnail + version, không kéo ảnh gốc
+    public Document getAvatarThumb(String username, int size) {
+        return col().find(Filters.eq("username", username))
+                .projection(avatarThumbFields(size))
+                .first();
+    }
+
+    public long getAvatarVersion(String username) {
+        Document doc = col().find(Filters.eq("username", username))
+                .projection(Projections.include(FIELD_AVATAR_VERSION))
+                .first();
+        return (doc != null) ? avatarVersion(doc) : 0L;
+    }
+
+    // Avatar upload trước khi có version -> 0
+    public static long avatarVersion(Document doc) {
+        Number v = doc.get(FIELD_AVATAR_VERSION, Number.class);
+        return (v != null) ? v.longValue() : 0L;
     }
 
 // Hàm lấy avatar
@@ -171,4 +278,19 @@ public class UserDAO {
         Document doc = col().find(Filters.eq("username", username)).projection(new Document(FIELD_ENC_AVATAR, 1)).first();
         return (doc != null) ? doc.getString(FIELD_ENC_AVATAR) : null;
     }
-}
+
+    public Object findUserId(String username) {
+        Document doc = col().find(Filters.eq("username", username)).projection(Projections.include("_id")).first();
+        return (doc != null) ? doc.get("_id") : null;
+    }
+
+    // Change stream: chỉ các update có đổi sessionId của đúng user này
+    public ChangeStreamIterable<Document> watchSession(Object userId, BsonDocument resumeToken) {
+        List<Bson> pipeline = List.of(Aggregates.match(Filters.and(
+                Filters.eq("operationType", "update"),
+                Filters.eq("documentKey._id", userId),
+                Filters.exists("updateDescription.updatedFields.sessionId"))));
+        ChangeStreamIterable<Document> it = col().watch(pipeline);
+        return (resumeToken != null) ? it.resumeAfter(resumeToken) : it;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,168 @@
+package com.securechat.dao;
+
+import com.mongodb.ClientBulkWriteException;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoSocketException;
+import com.mongodb.WriteError;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.bulk.ClientBulkWriteOptions;
+import com.mongodb.client.model.bulk.ClientNamespacedWriteModel;
+import com.mongodb.client.model.bulk.ClientUpdateOneOptions;
+import com.securechat.config.AppConfig;
+import com.securechat.config.MongoProvider;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gom các write của một thao tác (vd. gửi tin: message + conversations + contacts)
+ * để gửi trong 1 round trip bằng client-level bulkWrite (MongoDB 8.0+, nhiều collection).
+ * - Server cũ không hỗ trợ (CommandNotFound) -> mỗi collection 1 bulkWrite, và nhớ lại để không thử nữa.
+ * - Không thứ tự; insert dùng _id sinh phía client nên chạy lại (retry) không tạo bản sao:
+ *   lỗi duplicate key (11000) của insert được coi là "đã ghi rồi".
+ * - Update phải tự idempotent (vd. ConversationDAO.recordMessage); upsert đụng duplicate key
+ *   (2 upsert cùng tạo 1 document) được chạy lại thành update thường thay vì bị bỏ qua.
+ */
+public class WriteBatch {
+
+    private static final int DUPLICATE_KEY = 11000;
+    private static final int COMMAND_NOT_FOUND = 59;
+    private static final int MAX_ATTEMPTS = 2;
+    private static volatile boolean clientBulkSupported = true;
+
+    /**
+     * @param retryModel chỉ có ở upsert: bản update thường (không upsert) để chạy lại khi upsert thua race
+     *                   insert với một upsert khác (duplicate key) -> update vẫn được áp dụng, không mất
+     */
+    private record Op(String collection, WriteModel<Document> model, ClientNamespacedWriteModel clientModel,
+                      boolean insert, WriteModel<Document> retryModel) {}
+
+    private final List<Op> ops = new ArrayList<>();
+
+    public WriteBatch insert(String collection, Document doc) {
+        ops.add(new Op(collection, new InsertOneModel<>(doc),
+                ClientNamespacedWriteModel.insertOne(ns(collection), doc), true, null));
+        return this;
+    }
+
+    public WriteBatch updateOne(String collection, Bson filter, Bson update, boolean upsert) {
+        ops.add(new Op(collection, new UpdateOneModel<>(filter, update, new UpdateOptions().upsert(upsert)),
+                ClientNamespacedWriteModel.updateOne(ns(collection), filter, update,
+                        ClientUpdateOneOptions.clientUpdateOneOptions().upsert(upsert)),
+                false, upsert ? new UpdateOneModel<>(filter, update) : null));
+        return this;
+    }
+
+    // Update dạng pipeline (cập nhật có điều kiện theo giá trị hiện có của document)
+    public WriteBatch updateOne(String collection, Bson filter, List<? extends Bson> pipeline, boolean upsert) {
+        ops.add(new Op(collection, new UpdateOneModel<>(filter, pipeline, new UpdateOptions().upsert(upsert)),
+                ClientNamespacedWriteModel.updateOne(ns(collection), filter, pipeline,
+                        ClientUpdateOneOptions.clientUpdateOneOptions().upsert(upsert)),
+                false, upsert ? new UpdateOneModel<>(filter, pipeline) : null));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return ops.isEmpty();
+    }
+
+    // Ghi toàn bộ; lỗi mạng thì thử lại 1 lần (idempotent, xem javadoc lớp)
+    public void execute() {
+        if (ops.isEmpty()) return;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (clientBulkSupported) {
+                    executeClientBulk();
+                } else {
+                    executePerCollection();
+                }
+                return;
+            } catch (MongoSocketException e) {
+                if (attempt >= MAX_ATTEMPTS) throw e;
+            }
+        }
+    }
+
+    private void executeClientBulk() {
+        List<ClientNamespacedWriteModel> models = new ArrayList<>(ops.size());
+        for (Op op : ops) {
+            models.add(op.clientModel());
+        }
+        try {
+            MongoProvider.client().bulkWrite(models, ClientBulkWriteOptions.clientBulkWriteOptions().ordered(false));
+        } catch (ClientBulkWriteException e) {
+            if (!e.getWriteConcernErrors().isEmpty()) throw e;
+            List<Op> retries = new ArrayList<>();
+            for (Map.Entry<Integer, WriteError> err : e.getWriteErrors().entrySet()) {
+                if (!recoverable(ops.get(err.getKey()), err.getValue().getCode(), retries)) throw e;
+            }
+            retryAsUpdates(retries);
+        } catch (MongoCommandException e) {
+            // Chỉ khi server < 8.0 (không có lệnh bulkWrite) mới chuyển hẳn sang bulkWrite theo từng collection;
+            // timeout / lỗi xác thực... phải ném ra, không được tắt đường 1 round trip
+            if (e.getErrorCode() != COMMAND_NOT_FOUND && !"CommandNotFound".equals(e.getErrorCodeName())) throw e;
+            clientBulkSupported = false;
+            executePerCollection();
+        }
+    }
+
+    private void executePerCollection() {
+        Map<String, List<Op>> byCollection = new LinkedHashMap<>();
+        for (Op op : ops) {
+            byCollection.computeIfAbsent(op.collection(), c -> new ArrayList<>()).add(op);
+        }
+        List<Op> retries = new ArrayList<>();
+        for (Map.Entry<String, List<Op>> e : byCollection.entrySet()) {
+            List<Op> colOps = e.getValue();
+            List<WriteModel<Document>> models = new ArrayList<>(colOps.size());
+            for (Op op : colOps) {
+                models.add(op.model());
+            }
+            try {
+                MongoProvider.db().getCollection(e.getKey()).bulkWrite(models, new BulkWriteOptions().ordered(false));
+            } catch (MongoBulkWriteException ex) {
+                if (ex.getWriteConcernError() != null) throw ex;
+                for (BulkWriteError err : ex.getWriteErrors()) {
+                    if (!recoverable(colOps.get(err.getIndex()), err.getCode(), retries)) throw ex;
+                }
+            }
+        }
+        retryAsUpdates(retries);
+    }
+
+    /**
+     * Duplicate key chỉ được bỏ qua ở 2 trường hợp đã biết:
+     * - insert: _id sinh phía client -> đây là lần chạy lại của write đã thành công.
+     * - upsert: document vừa được upsert khác tạo ra -> chạy lại thành update thường (retries).
+     * Các lỗi khác (kể cả 11000 ở update thường) phải ném ra.
+     */
+    private static boolean recoverable(Op op, int code, List<Op> retries) {
+        if (code != DUPLICATE_KEY) return false;
+        if (op.insert()) return true;
+        if (op.retryModel() == null) return false;
+        retries.add(op);
+        return true;
+    }
+
+    private static void retryAsUpdates(List<Op> retries) {
+        for (Op op : retries) {
+            MongoProvider.db().getCollection(op.collection())
+                    .bulkWrite(List.of(op.retryModel()), new BulkWriteOptions().ordered(false));
+        }
+    }
+
+    private static MongoNamespace ns(String collection) {
+        return new MongoNamespace(AppConfig.DB_NAME, collection);
+    }
+}
@@ -9,9 +9,11 @@ package com.securechat.model;
  * @author ADMIN
  */
 public class DecryptedMessage {
+    public String id; // _id (hex) của document, dùng làm cursor khi đồng bộ
     public String from;
     public String to;
     public long ts;
     public String plaintext;
     public boolean signatureValid;
+    public boolean signatureChecked; // false = chưa có khóa ký của người gửi, chưa kiểm tra được
 }
\ No newline at end of file
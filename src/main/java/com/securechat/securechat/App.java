@@ -4,6 +4,7 @@
  */
 package com.securechat.securechat;
 
+import com.securechat.dao.SchemaMigrator;
 import com.securechat.ui.LoginForm;
 
 import javax.swing.*;
@@ -15,5 +16,7 @@ public class App {
             catch (ClassNotFoundException | IllegalAccessException | InstantiationException | UnsupportedLookAndFeelException ignored) {}
             new LoginForm().setVisible(true);
         });
+        // Chuyển dữ liệu cũ (Base64) sang BSON Binary ở background
+        SchemaMigrator.startInBackground();
     }
 }
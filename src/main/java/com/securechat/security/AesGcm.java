@@ -4,41 +4,78 @@
  */
 package com.securechat.security;
 
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import javax.crypto.BadPaddingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public final class AesGcm {
     private AesGcm() {}
 
+    public static final int TAG_BYTES = 16;
+
+    // Cipher lấy từ pool, init lại với key/IV của từng lần gọi.
+    // Engine GCM từ chối mã hóa lại với đúng cặp key/IV lần trước (chống dùng lại nonce):
+    // exception được ném ra, engine không trả về pool.
+    private static Cipher init(int mode, byte[] key32, byte[] iv12, byte[] aad) throws GeneralSecurityException {
+        Cipher c = CryptoEngines.AES_GCM.acquire();
+        c.init(mode, new SecretKeySpec(key32, "AES"), new GCMParameterSpec(128, iv12));
+        if (aad != null) c.updateAAD(aad);
+        return c;
+    }
+
     public static byte[] encrypt(byte[] key32, byte[] iv12, byte[] plaintext, byte[] aad) {
         try {
-            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
-            SecretKeySpec k = new SecretKeySpec(key32, "AES");
-            GCMParameterSpec spec = new GCMParameterSpec(128, iv12);
-            c.init(Cipher.ENCRYPT_MODE, k, spec);
-            if (aad != null) c.updateAAD(aad);
-            return c.doFinal(plaintext);
-        } catch (InvalidAlgorithmParameterException | InvalidKeyException | NoSuchAlgorithmException | BadPaddingException | IllegalBlockSizeException | NoSuchPaddingException e) {
+            Cipher c = init(Cipher.ENCRYPT_MODE, key32, iv12, aad);
+            byte[] out = c.doFinal(plaintext);
+            CryptoEngines.AES_GCM.release(c);
+            return out;
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException("AES-GCM encrypt failed", e);
         }
     }
 
+    /**
+     * Mã hóa từ "in" (position..limit) vào "out" của caller, không cấp phát mảng kết quả.
+     * Buffer có thể là direct và dùng lại cho nhiều lần gọi.
+     * @param out cần còn trống ít nhất in.remaining() + TAG_BYTES
+     * @return số byte đã ghi vào out
+     */
+    public static int encrypt(byte[] key32, byte[] iv12, ByteBuffer in, ByteBuffer out, byte[] aad) {
+        try {
+            Cipher c = init(Cipher.ENCRYPT_MODE, key32, iv12, aad);
+            int n = c.doFinal(in, out);
+            CryptoEngines.AES_GCM.release(c);
+            return n;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("AES-GCM encrypt failed", e);
+        }
+    }
+
+    /**
+     * Giải mã vào buffer của caller.
+     * @param out cần còn trống ít nhất in.remaining() - TAG_BYTES
+     * @return số byte plaintext đã ghi vào out
+     */
+    public static int decrypt(byte[] key32, byte[] iv12, ByteBuffer in, ByteBuffer out, byte[] aad) {
+        try {
+            Cipher c = init(Cipher.DECRYPT_MODE, key32, iv12, aad);
+            int n = c.doFinal(in, out);
+            CryptoEngines.AES_GCM.release(c);
+            return n;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("AES-GCM decrypt failed", e);
+        }
+    }
+
     public static byte[] decrypt(byte[] key32, byte[] iv12, byte[] ciphertext, byte[] aad) {
         try {
-            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
-            SecretKeySpec k = new SecretKeySpec(key32, "AES");
-            GCMParameterSpec spec = new GCMParameterSpec(128, iv12);
-            c.init(Cipher.DECRYPT_MODE, k, spec);
-            if (aad != null) c.updateAAD(aad);
-            return c.doFinal(ciphertext);
-        } catch (InvalidAlgorithmParameterException | InvalidKeyException | NoSuchAlgorithmException | BadPaddingException | IllegalBlockSizeException | NoSuchPaddingException e) {
+            Cipher c = init(Cipher.DECRYPT_MODE, key32, iv12, aad);
+            byte[] out = c.doFinal(ciphertext);
+            CryptoEngines.AES_GCM.release(c);
+            return out;
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException("AES-GCM decrypt failed", e);
         }
     }
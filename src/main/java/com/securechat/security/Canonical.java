@@ -19,4 +19,10 @@ public final class Canonical {
         String s = from + "|" + to + "|" + ts;
         return s.getBytes(StandardCharsets.UTF_8);
     }
+
+    // AAD cho từng chunk của file: chống đổi thứ tự / cắt bớt / ghép chunk từ file khác
+    public static byte[] chunkAad(String fileId, int index, int total) {
+        String s = fileId + "|" + index + "|" + total;
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
 }
\ No newline at end of file
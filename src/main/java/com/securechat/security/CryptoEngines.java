@@ -0,0 +1,71 @@
+package com.securechat.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool các engine JCA (Cipher, Mac, Signature...) để không phải getInstance() (tra provider + cấp phát)
+ * ở mỗi lần mã hóa / giải mã.
+ * - Dùng hàng đợi lock-free thay cho ThreadLocal: virtual thread sống ngắn nên ThreadLocal gần như
+ *   không bao giờ được dùng lại, còn synchronized sẽ ghim (pin) carrier thread.
+ * - Engine luôn được init lại với key/IV của lần dùng; nếu lần dùng bị lỗi thì bỏ luôn engine đó
+ *   thay vì trả về pool (không rõ trạng thái).
+ */
+final class CryptoEngines {
+    private CryptoEngines() {}
+
+    // Đủ cho số core thông thường; vượt quá thì engine thừa bị bỏ cho GC
+    private static final int MAX_IDLE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    @FunctionalInterface
+    interface Factory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    static final class Pool<T> {
+        private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final Factory<T> factory;
+
+        Pool(Factory<T> factory) {
+            this.factory = factory;
+        }
+
+        T acquire() throws GeneralSecurityException {
+            T e = idle.poll();
+            if (e != null) {
+                idleCount.decrementAndGet();
+                return e;
+            }
+            return factory.create();
+        }
+
+        // Chỉ gọi khi engine được dùng xong bình thường
+        void release(T e) {
+            if (idleCount.incrementAndGet() <= MAX_IDLE) {
+                idle.offer(e);
+            } else {
+                idleCount.decrementAndGet();
+            }
+        }
+    }
+
+    static final Pool<Cipher> AES_GCM = new Pool<>(() -> Cipher.getInstance("AES/GCM/NoPadding"));
+    static final Pool<Mac> HMAC_SHA256 = new Pool<>(() -> Mac.getInstance("HmacSHA256"));
+    static final Pool<MessageDigest> SHA_256 = new Pool<>(() -> MessageDigest.getInstance("SHA-256"));
+    static final Pool<Signature> ED25519 = new Pool<>(() -> Signature.getInstance("Ed25519"));
+    static final Pool<KeyAgreement> X25519 = new Pool<>(() -> KeyAgreement.getInstance("X25519"));
+    static final Pool<KeyPairGenerator> X25519_KEYGEN = new Pool<>(() -> KeyPairGenerator.getInstance("X25519"));
+    static final Pool<KeyFactory> ED25519_KEYS = new Pool<>(() -> KeyFactory.getInstance("Ed25519"));
+    static final Pool<KeyFactory> X25519_KEYS = new Pool<>(() -> KeyFactory.getInstance("X25519"));
+    static final Pool<SecretKeyFactory> PBKDF2_SHA256 = new Pool<>(() -> SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256"));
+}
@@ -0,0 +1,56 @@
+package com.securechat.security;
+
+import java.security.KeyPair;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Kho cặp khóa X25519 ephemeral sinh sẵn, để gửi tin không phải chờ keygen.
+ * - Giới hạn CAPACITY cặp; còn dưới LOW_WATER thì 1 virtual thread nạp lại cho đầy.
+ * - Mỗi cặp chỉ được lấy ra đúng 1 lần (poll khỏi hàng đợi, không bao giờ trả lại).
+ * - Kho rỗng (vd. gửi dồn dập) -> sinh trực tiếp như trước, không chặn chờ thread nạp.
+ */
+public final class EphemeralKeyPool {
+    private EphemeralKeyPool() {}
+
+    private static final int CAPACITY = 64;
+    private static final int LOW_WATER = 16;
+
+    private static final ConcurrentLinkedQueue<KeyPair> ready = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger readyCount = new AtomicInteger();
+    private static final AtomicBoolean refilling = new AtomicBoolean();
+
+    // Gọi sớm (vd. lúc khởi tạo ChatService) để tin đầu tiên đã có khóa sẵn
+    public static void warmUp() {
+        refillIfLow();
+    }
+
+    public static KeyPair take() {
+        KeyPair kp = ready.poll();
+        if (kp != null) {
+            readyCount.decrementAndGet();
+        }
+        refillIfLow();
+        return (kp != null) ? kp : Keys.genX25519();
+    }
+
+    private static void refillIfLow() {
+        if (readyCount.get() >= LOW_WATER || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+        Thread.ofVirtual().name("ephemeral-keygen").start(() -> {
+            try {
+                // Chỉ 1 thread nạp tại một thời điểm nên không vượt CAPACITY
+                while (readyCount.get() < CAPACITY) {
+                    ready.offer(Keys.genX25519());
+                    readyCount.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                // Keygen lỗi: dừng nạp, take() vẫn sinh trực tiếp được
+            } finally {
+                refilling.set(false);
+            }
+        });
+    }
+}
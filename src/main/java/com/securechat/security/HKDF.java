@@ -4,56 +4,63 @@
  */
 package com.securechat.security;
 
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
-import java.util.Arrays;
 
 
 public final class HKDF {
     private HKDF() {}
 
-    // HKDF-Extract(salt, IKM)
-    private static byte[] extract(byte[] salt, byte[] ikm) throws Exception {
-        Mac mac = Mac.getInstance("HmacSHA256");
+    private static final int HASH_LEN = 32; // HmacSHA256
+
+    // HKDF-Extract(salt, IKM): PRK ghi vào block[0..HASH_LEN)
+    private static void extract(Mac mac, byte[] salt, byte[] ikm, byte[] block) throws GeneralSecurityException {
         mac.init(new SecretKeySpec(salt, "HmacSHA256"));
-        return mac.doFinal(ikm); // PRK
+        mac.update(ikm);
+        mac.doFinal(block, 0);
     }
 
-    // HKDF-Expand(PRK, info, L)
-    private static byte[] expand(byte[] prk, byte[] info, int len) throws Exception {
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+    // HKDF-Expand(PRK, info, L): ghi thẳng vào out[off..off+len), T(i) giữ ở block[HASH_LEN..2*HASH_LEN)
+    private static void expand(Mac mac, byte[] block, byte[] info, byte[] out, int off, int len) throws GeneralSecurityException {
+        if (len > 255 * HASH_LEN) throw new IllegalArgumentException("HKDF output too long");
+        mac.init(new SecretKeySpec(block, 0, HASH_LEN, "HmacSHA256"));
 
-        byte[] t = new byte[0];
-        byte[] okm = new byte[0];
-        int counter = 1;
-
-        while (okm.length < len) {
-            mac.reset();
-            mac.update(t);
+        int done = 0;
+        for (int counter = 1; done < len; counter++) {
+            if (counter > 1) mac.update(block, HASH_LEN, HASH_LEN);
             mac.update(info);
             mac.update((byte) counter);
-            t = mac.doFinal();
-
-            int remaining = len - okm.length;
-            byte[] toAdd = (remaining >= t.length) ? t : Arrays.copyOf(t, remaining);
-
-            byte[] newOkm = new byte[okm.length + toAdd.length];
-            System.arraycopy(okm, 0, newOkm, 0, okm.length);
-            System.arraycopy(toAdd, 0, newOkm, okm.length, toAdd.length);
-            okm = newOkm;
-
-            counter++;
+            mac.doFinal(block, HASH_LEN);
+            int n = Math.min(HASH_LEN, len - done);
+            System.arraycopy(block, HASH_LEN, out, off + done, n);
+            done += n;
         }
-        return okm;
     }
 
-    public static byte[] deriveAes256(byte[] sharedSecret, byte[] salt, byte[] info) {
+    /**
+     * Dẫn xuất len byte khóa vào mảng của caller (dùng lại được giữa các tin nhắn).
+     * PRK và T(i) dùng chung 1 block tạm, xóa trắng trước khi trả về.
+     */
+    public static void derive(byte[] ikm, byte[] salt, byte[] info, byte[] out, int off, int len) {
+        byte[] block = new byte[2 * HASH_LEN];
         try {
-            byte[] prk = extract(salt, sharedSecret);
-            return expand(prk, info, 32); // 32 bytes = AES-256
-        } catch (Exception e) {
+            // 1 Mac (từ pool) cho cả extract lẫn expand
+            Mac mac = CryptoEngines.HMAC_SHA256.acquire();
+            extract(mac, salt, ikm, block);
+            expand(mac, block, info, out, off, len);
+            CryptoEngines.HMAC_SHA256.release(mac);
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException("HKDF failed", e);
+        } finally {
+            Arrays.fill(block, (byte) 0);
         }
     }
-}
\ No newline at end of file
+
+    public static byte[] deriveAes256(byte[] sharedSecret, byte[] salt, byte[] info) {
+        byte[] key = new byte[32]; // 32 bytes = AES-256
+        derive(sharedSecret, salt, info, key, 0, key.length);
+        return key;
+    }
+}
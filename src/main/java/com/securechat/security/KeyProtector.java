@@ -4,11 +4,13 @@
  */
 package com.securechat.security;
 
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.*;
+import java.util.Arrays;
 
 public final class KeyProtector {
     private KeyProtector() {}
@@ -18,42 +20,42 @@ public final class KeyProtector {
     public static byte[] privEncoded(PrivateKey k) { return k.getEncoded(); }    // PKCS#8
 
     // ----- Decode keys -----
+    // KeyFactory lấy từ pool (decode khóa công khai xảy ra mỗi khi nạp danh bạ khóa)
     public static PublicKey decodeEd25519Public(byte[] x509) {
-        try {
-            return KeyFactory.getInstance("Ed25519").generatePublic(new X509EncodedKeySpec(x509));
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) { throw new RuntimeException(e); }
+        return decodePublic(CryptoEngines.ED25519_KEYS, x509);
     }
 
     public static PrivateKey decodeEd25519Private(byte[] pkcs8) {
-        try {
-            return KeyFactory.getInstance("Ed25519").generatePrivate(new PKCS8EncodedKeySpec(pkcs8));
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) { throw new RuntimeException(e); }
+        return decodePrivate(CryptoEngines.ED25519_KEYS, pkcs8);
     }
 
     public static PublicKey decodeX25519Public(byte[] x509) {
-        try {
-            return KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(x509));
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) { throw new RuntimeException(e); }
+        return decodePublic(CryptoEngines.X25519_KEYS, x509);
     }
 
     public static PrivateKey decodeX25519Private(byte[] pkcs8) {
-        try {
-            return KeyFactory.getInstance("X25519").generatePrivate(new PKCS8EncodedKeySpec(pkcs8));
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) { throw new RuntimeException(e); }
+        return decodePrivate(CryptoEngines.X25519_KEYS, pkcs8);
     }
 
-    // ----- Protect private key with password (PBKDF2 -> AES-GCM) -----
-    public static ProtectedBlob protect(byte[] privateKeyPkcs8, char[] password) {
-        byte[] salt = Rand.bytes(16);
-        int iters = 200_000;
-        byte[] kek = PBKDF2.deriveKey(password, salt, iters, 32);
-
-        byte[] iv = Rand.bytes(12);
-        byte[] ct = AesGcm.encrypt(kek, iv, privateKeyPkcs8, null);
+    private static PublicKey decodePublic(CryptoEngines.Pool<KeyFactory> pool, byte[] x509) {
+        try {
+            KeyFactory kf = pool.acquire();
+            PublicKey k = kf.generatePublic(new X509EncodedKeySpec(x509));
+            pool.release(kf);
+            return k;
+        } catch (GeneralSecurityException e) { throw new RuntimeException(e); }
+    }
 
-        return new ProtectedBlob(B64.enc(ct), B64.enc(iv), B64.enc(salt), iters);
+    private static PrivateKey decodePrivate(CryptoEngines.Pool<KeyFactory> pool, byte[] pkcs8) {
+        try {
+            KeyFactory kf = pool.acquire();
+            PrivateKey k = kf.generatePrivate(new PKCS8EncodedKeySpec(pkcs8));
+            pool.release(kf);
+            return k;
+        } catch (GeneralSecurityException e) { throw new RuntimeException(e); }
     }
 
+    // ----- Scheme 1 (PBKDF2 riêng cho từng private key): chỉ còn đọc để login / nâng cấp tài khoản cũ -----
     public static byte[] unprotect(ProtectedBlob blob, char[] password) {
         byte[] salt = B64.dec(blob.saltB64);
         byte[] iv = B64.dec(blob.ivB64);
@@ -64,4 +66,33 @@ public final class KeyProtector {
     }
 
     public record ProtectedBlob(String ciphertextB64, String ivB64, String saltB64, int iters) {}
+
+    // ----- Scheme 2: 1 lần PBKDF2 -> master secret, HKDF tách thành verifier + khóa wrap cho từng private key -----
+    // Chi phí mỗi lần đoán mật khẩu vẫn là 1 PBKDF2 đủ số vòng, nhưng login chỉ chạy PBKDF2 1 lần thay vì 3.
+    public static final int SCHEME_HIERARCHY = 2;
+
+    public record KeyHierarchy(byte[] authVerifier, byte[] signWrapKey, byte[] ecdhWrapKey) {}
+
+    public static KeyHierarchy deriveHierarchy(char[] password, byte[] salt, int iters) {
+        byte[] master = PBKDF2.deriveKey(password, salt, iters, 32);
+        try {
+            return new KeyHierarchy(
+                    HKDF.deriveAes256(master, salt, "SecureChat auth verifier".getBytes(StandardCharsets.UTF_8)),
+                    HKDF.deriveAes256(master, salt, "SecureChat sign key wrap".getBytes(StandardCharsets.UTF_8)),
+                    HKDF.deriveAes256(master, salt, "SecureChat ecdh key wrap".getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            Arrays.fill(master, (byte) 0);
+        }
+    }
+
+    // Blob của scheme 2 không có salt / số vòng riêng (khóa wrap lấy từ KeyHierarchy)
+    public static ProtectedBlob protect(byte[] privateKeyPkcs8, byte[] wrapKey) {
+        byte[] iv = Rand.bytes(12);
+        byte[] ct = AesGcm.encrypt(wrapKey, iv, privateKeyPkcs8, null);
+        return new ProtectedBlob(B64.enc(ct), B64.enc(iv), null, 0);
+    }
+
+    public static byte[] unprotect(ProtectedBlob blob, byte[] wrapKey) {
+        return AesGcm.decrypt(wrapKey, B64.dec(blob.ivB64), B64.dec(blob.ciphertextB64), null);
+    }
 }
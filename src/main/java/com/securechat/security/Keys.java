@@ -18,44 +18,53 @@ public final class Keys {
         }
     }
 
+    // Các hàm dưới đây dùng engine từ CryptoEngines (mỗi tin nhắn gọi vài lần)
     public static KeyPair genX25519() {
         try {
-            KeyPairGenerator kpg = KeyPairGenerator.getInstance("X25519");
-            return kpg.generateKeyPair();
-        } catch (NoSuchAlgorithmException e) {
+            KeyPairGenerator kpg = CryptoEngines.X25519_KEYGEN.acquire();
+            KeyPair kp = kpg.generateKeyPair();
+            CryptoEngines.X25519_KEYGEN.release(kpg);
+            return kp;
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException("X25519 keygen failed", e);
         }
     }
 
     public static byte[] signEd25519(PrivateKey priv, byte[] msg) {
         try {
-            Signature s = Signature.getInstance("Ed25519");
+            Signature s = CryptoEngines.ED25519.acquire();
             s.initSign(priv);
             s.update(msg);
-            return s.sign();
-        } catch (InvalidKeyException | NoSuchAlgorithmException | SignatureException e) {
+            byte[] sig = s.sign();
+            CryptoEngines.ED25519.release(s);
+            return sig;
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException("Ed25519 sign failed", e);
         }
     }
 
     public static boolean verifyEd25519(PublicKey pub, byte[] msg, byte[] sig) {
         try {
-            Signature s = Signature.getInstance("Ed25519");
+            Signature s = CryptoEngines.ED25519.acquire();
             s.initVerify(pub);
             s.update(msg);
-            return s.verify(sig);
-        } catch (InvalidKeyException | NoSuchAlgorithmException | SignatureException e) {
+            boolean ok = s.verify(sig);
+            CryptoEngines.ED25519.release(s);
+            return ok;
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException("Ed25519 verify failed", e);
         }
     }
 
     public static byte[] x25519SharedSecret(PrivateKey myPriv, PublicKey theirPub) {
         try {
-            KeyAgreement ka = KeyAgreement.getInstance("X25519");
+            KeyAgreement ka = CryptoEngines.X25519.acquire();
             ka.init(myPriv);
             ka.doPhase(theirPub, true);
-            return ka.generateSecret();
-        } catch (IllegalStateException | InvalidKeyException | NoSuchAlgorithmException e) {
+            byte[] secret = ka.generateSecret();
+            CryptoEngines.X25519.release(ka);
+            return secret;
+        } catch (IllegalStateException | GeneralSecurityException e) {
             throw new RuntimeException("X25519 ECDH failed", e);
         }
     }
@@ -0,0 +1,144 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.securechat.security;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Định dạng plaintext của tin nhắn (trước khi mã hóa AES-GCM).
+ *
+ * V1 (nhị phân): [0x01][from][to][ts:int64][msg][digest][sig]
+ *   mỗi field string/bytes = [len:int32][bytes], digest/sig là byte thô (không Base64).
+ * Legacy (text): "from=...\nto=...\nts=...\nmsg=...\ndigestB64=...\nsigB64=...\n"
+ *   vẫn decode được để đọc tin cũ.
+ */
+public final class MessagePayload {
+    private MessagePayload() {}
+
+    public static final byte VERSION_1 = 0x01;
+
+    public record Fields(String from, String to, long ts, String msg, byte[] digest, byte[] sig) {}
+
+    public static byte[] encode(String from, String to, long ts, String msg, byte[] digest, byte[] sig) {
+        byte[] f = from.getBytes(StandardCharsets.UTF_8);
+        byte[] t = to.getBytes(StandardCharsets.UTF_8);
+        byte[] m = msg.getBytes(StandardCharsets.UTF_8);
+        int size = 1 + (4 + f.length) + (4 + t.length) + 8 + (4 + m.length) + (4 + digest.length) + (4 + sig.length);
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(VERSION_1);
+        putBytes(buf, f);
+        putBytes(buf, t);
+        buf.putLong(ts);
+        putBytes(buf, m);
+        putBytes(buf, digest);
+        putBytes(buf, sig);
+        return buf.array();
+    }
+
+    public static Fields decode(byte[] payload) {
+        return decode(ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Decode từ buffer của caller (position..limit), không copy ra mảng payload riêng.
+     * Buffer có thể được dùng lại ngay sau khi hàm trả về.
+     */
+    public static Fields decode(ByteBuffer payload) {
+        ByteBuffer buf = payload.slice();
+        if (buf.hasRemaining() && buf.get(0) == VERSION_1) {
+            return decodeV1(buf.position(1));
+        }
+        byte[] text = new byte[buf.remaining()];
+        buf.get(text);
+        return decodeLegacy(new String(text, StandardCharsets.UTF_8));
+    }
+
+    private static Fields decodeV1(ByteBuffer buf) {
+        try {
+            String from = getString(buf);
+            String to = getString(buf);
+            long ts = buf.getLong();
+            String msg = getString(buf);
+            byte[] digest = getBytes(buf);
+            byte[] sig = getBytes(buf);
+            return new Fields(from, to, ts, msg, digest, sig);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated message payload", e);
+        }
+    }
+
+    // Parse một lượt duy nhất; giữ nguyên ngữ nghĩa cũ (trim, key xuất hiện trước thắng)
+    private static Fields decodeLegacy(String payload) {
+        String from = null, to = null, ts = null, msg = null, digestB64 = null, sigB64 = null;
+        int pos = 0;
+        int n = payload.length();
+        while (pos < n) {
+            int eol = payload.indexOf('\n', pos);
+            if (eol < 0) eol = n;
+            int eq = payload.indexOf('=', pos);
+            if (eq > pos && eq < eol) {
+                String k = payload.substring(pos, eq).trim();
+                String v = payload.substring(eq + 1, eol).trim();
+                switch (k) {
+                    case "from" -> { if (from == null) from = v; }
+                    case "to" -> { if (to == null) to = v; }
+                    case "ts" -> { if (ts == null) ts = v; }
+                    case "msg" -> { if (msg == null) msg = v; }
+                    case "digestB64" -> { if (digestB64 == null) digestB64 = v; }
+                    case "sigB64" -> { if (sigB64 == null) sigB64 = v; }
+                    default -> { }
+                }
+            }
+            pos = eol + 1;
+        }
+        long tsVal = 0L;
+        try {
+            if (ts != null) tsVal = Long.parseLong(ts);
+        } catch (NumberFormatException ignored) {
+        }
+        return new Fields(
+                orEmpty(from), orEmpty(to), tsVal, orEmpty(msg),
+                B64.dec(orEmpty(digestB64)), B64.dec(orEmpty(sigB64)));
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] b) {
+        buf.putInt(b.length);
+        buf.put(b);
+    }
+
+    private static byte[] getBytes(ByteBuffer buf) {
+        byte[] b = new byte[fieldLength(buf)];
+        buf.get(b);
+        return b;
+    }
+
+    // Giải mã UTF-8 thẳng từ buffer (heap thì đọc luôn mảng nền, không copy trung gian)
+    private static String getString(ByteBuffer buf) {
+        int len = fieldLength(buf);
+        if (buf.hasArray()) {
+            String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+            buf.position(buf.position() + len);
+            return s;
+        }
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static int fieldLength(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0 || len > buf.remaining()) {
+            throw new IllegalArgumentException("Invalid field length in message payload");
+        }
+        return len;
+    }
+
+    private static String orEmpty(String s) {
+        return (s != null) ? s : "";
+    }
+}
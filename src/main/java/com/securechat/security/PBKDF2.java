@@ -6,9 +6,8 @@ package com.securechat.security;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
 
 public final class PBKDF2 {
     private PBKDF2() {}
@@ -16,9 +15,12 @@ public final class PBKDF2 {
     public static byte[] deriveKey(char[] password, byte[] salt, int iters, int keyLenBytes) {
         try {
             PBEKeySpec spec = new PBEKeySpec(password, salt, iters, keyLenBytes * 8);
-            SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            return skf.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            SecretKeyFactory skf = CryptoEngines.PBKDF2_SHA256.acquire();
+            byte[] key = skf.generateSecret(spec).getEncoded();
+            CryptoEngines.PBKDF2_SHA256.release(skf);
+            spec.clearPassword();
+            return key;
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException("PBKDF2 failed", e);
         }
     }
@@ -4,16 +4,19 @@
  */
 package com.securechat.security;
 
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 public final class SHA256 {
     private SHA256() {}
 
     public static byte[] hash(byte[] data) {
         try {
-            return MessageDigest.getInstance("SHA-256").digest(data);
-        } catch (NoSuchAlgorithmException e) {
+            MessageDigest md = CryptoEngines.SHA_256.acquire();
+            byte[] h = md.digest(data); // digest() tự reset engine
+            CryptoEngines.SHA_256.release(md);
+            return h;
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException(e);
         }
     }
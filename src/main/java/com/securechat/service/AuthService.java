@@ -4,6 +4,12 @@ package com.securechat.service;
 import com.securechat.dao.UserDAO;
 import com.securechat.security.*;
 import org.bson.Document;
+import org.bson.types.Binary;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.security.KeyPair;
 
@@ -14,6 +20,8 @@ public class AuthService {
     private static final int MAX_ATTEMPTS = 5;
     private static final long LOCK_TIME_MS = 5*60* 1000; // 5 Phút (Để test bạn có thể sửa thành 30s)
     private final CaptchaProvider captchaProvider = new CaptchaProvider();
+    // Số vòng PBKDF2 cho master secret (scheme 2)
+    private static final int PWD_ITERS = 200_000;
     
     public record UserProfileDTO(String username, String email, String fullName, String address, String gender) {}
 
@@ -28,20 +36,15 @@ public class AuthService {
         }
 
         // 2. Kiểm tra user tồn tại
-        if (userDAO.findByUsername(username) != null) {
+        if (userDAO.exists(username)) {
             throw new IllegalArgumentException("Username already exists");
         }
 
-        // 3. Xử lý Password & Key (Giữ nguyên)
-        byte[] pwdSalt = Rand.bytes(16);
-        int pwdIters = 200_000;
-        byte[] pwdHash = PBKDF2.deriveKey(password, pwdSalt, pwdIters, 32);
-
+        // 3. Xử lý Password & Key: 1 lần PBKDF2 cho cả verifier lẫn 2 private key (scheme 2)
         KeyPair signKP = Keys.genEd25519();
         KeyPair ecdhKP = Keys.genX25519();
-
-        var signBlob = KeyProtector.protect(KeyProtector.privEncoded(signKP.getPrivate()), password);
-        var ecdhBlob = KeyProtector.protect(KeyProtector.privEncoded(ecdhKP.getPrivate()), password);
+        Document credentials = credentialFields(password,
+                KeyProtector.privEncoded(signKP.getPrivate()), KeyProtector.privEncoded(ecdhKP.getPrivate()));
 
         // 4. Mã hóa thông tin cá nhân
         String encEmail = profileSec.encrypt(email);
@@ -56,20 +59,10 @@ public class AuthService {
                 .append(UserDAO.FIELD_ENC_FULLNAME, encFullName)
                 .append(UserDAO.FIELD_ENC_ADDRESS, encAddress)
                 .append(UserDAO.FIELD_ENC_GENDER, encGender)
-                .append("pwdSaltB64", B64.enc(pwdSalt))
-                .append("pwdHashB64", B64.enc(pwdHash))
-                .append("pwdIters", pwdIters)
                 .append("failedAttempts", 0)
                 .append("signPubB64", B64.enc(KeyProtector.pubEncoded(signKP.getPublic())))
-                .append("signPrivEncB64", signBlob.ciphertextB64())
-                .append("signPrivIvB64", signBlob.ivB64())
-                .append("signPrivSaltKdfB64", signBlob.saltB64())
-                .append("signPrivKdfIters", signBlob.iters())
-                .append("ecdhPubB64", B64.enc(KeyProtector.pubEncoded(ecdhKP.getPublic())))
-                .append("ecdhPrivEncB64", ecdhBlob.ciphertextB64())
-                .append("ecdhPrivIvB64", ecdhBlob.ivB64())
-                .append("ecdhPrivSaltKdfB64", ecdhBlob.saltB64())
-                .append("ecdhPrivKdfIters", ecdhBlob.iters());
+                .append("ecdhPubB64", B64.enc(KeyProtector.pubEncoded(ecdhKP.getPublic())));
+        doc.putAll(credentials);
 
         userDAO.insertUser(doc);
     }
@@ -95,7 +88,7 @@ public class AuthService {
 
     
     public Session login(String username, char[] password) {
-        Document u = userDAO.findByUsername(username);
+        Document u = userDAO.findAuth(username);
         if (u == null) throw new IllegalArgumentException("User not found");
 
         // --- [LOGIC 1] KIỂM TRA KHÓA TÀI KHOẢN ---
@@ -108,13 +101,10 @@ public class AuthService {
             }
         }
 
-        // --- [LOGIC 2] CHECK PASSWORD ---
-        byte[] salt = B64.dec(u.getString("pwdSaltB64"));
-        int iters = u.getInteger("pwdIters");
-        byte[] expected = B64.dec(u.getString("pwdHashB64"));
-        byte[] actual = PBKDF2.deriveKey(password, salt, iters, 32);
+        // --- [LOGIC 2] CHECK PASSWORD (đúng thì giải mã luôn 2 private key) ---
+        PrivateKeys keys = unlock(u, password);
 
-        if (!PBKDF2.constantTimeEquals(expected, actual)) {
+        if (keys == null) {
             // -- [LOGIC 3] XỬ LÝ KHI SAI PASS --
             userDAO.incrementFailedAttempts(username);
             
@@ -135,24 +125,19 @@ public class AuthService {
         String newSessionId = UUID.randomUUID().toString();
         userDAO.updateSessionId(username, newSessionId);
 
-        var signBlob = new KeyProtector.ProtectedBlob(
-                u.getString("signPrivEncB64"),
-                u.getString("signPrivIvB64"),
-                u.getString("signPrivSaltKdfB64"),
-                u.getInteger("signPrivKdfIters")
-        );
-        var ecdhBlob = new KeyProtector.ProtectedBlob(
-                u.getString("ecdhPrivEncB64"),
-                u.getString("ecdhPrivIvB64"),
-                u.getString("ecdhPrivSaltKdfB64"),
-                u.getInteger("ecdhPrivKdfIters")
-        );
-
-        byte[] signPrivPkcs8 = KeyProtector.unprotect(signBlob, password);
-        byte[] ecdhPrivPkcs8 = KeyProtector.unprotect(ecdhBlob, password);
-
-        var signPriv = KeyProtector.decodeEd25519Private(signPrivPkcs8);
-        var ecdhPriv = KeyProtector.decodeX25519Private(ecdhPrivPkcs8);
+        // Tài khoản scheme cũ: nâng cấp ngay khi đang có mật khẩu đúng trong tay
+        if (keys.legacy()) {
+            try {
+                // Không khớp = mật khẩu vừa được đổi ở nơi khác (đã là scheme 2) -> bỏ qua
+                userDAO.upgradeLegacyCredentials(username, u.getString("pwdHashB64"),
+                        credentialFields(password, keys.signPkcs8(), keys.ecdhPkcs8()));
+            } catch (RuntimeException e) {
+                System.out.println("KDF upgrade warning: " + e.getMessage()); // lần login sau thử lại
+            }
+        }
+
+        var signPriv = KeyProtector.decodeEd25519Private(keys.signPkcs8());
+        var ecdhPriv = KeyProtector.decodeX25519Private(keys.ecdhPkcs8());
 
         var signPub = KeyProtector.decodeEd25519Public(B64.dec(u.getString("signPubB64")));
         var ecdhPub = KeyProtector.decodeX25519Public(B64.dec(u.getString("ecdhPubB64")));
@@ -169,10 +154,6 @@ public class AuthService {
         userDAO.updateLastLogout(username);
     }
     
-    public long getLastLogoutTime(String username) {
-        return userDAO.getLastLogout(username);
-    }
-
     public record Session(
             String username,
             java.security.PublicKey signPub,
@@ -184,43 +165,67 @@ public class AuthService {
     
     public void changePassword(String username, char[] oldPass, char[] newPass) {
         // 1. Xác thực mật khẩu cũ (Logic giống Login)
-        Document u = userDAO.findByUsername(username);
+        Document u = userDAO.findAuth(username);
         if (u == null) throw new IllegalArgumentException("User not found");
 
+        // Đúng mật khẩu thì unlock giải mã luôn Private Keys bằng mật khẩu CŨ
+        PrivateKeys keys = unlock(u, oldPass);
+        if (keys == null) {
+            throw new IllegalArgumentException("Mật khẩu cũ không đúng!");
+        }
+
+        // 2. Verifier + wrap lại Private Keys bằng mật khẩu MỚI (luôn theo scheme 2), lưu xuống DB
+        userDAO.updateUserCredentials(username, credentialFields(newPass, keys.signPkcs8(), keys.ecdhPkcs8()));
+    }
+
+    // Private key (PKCS#8) đã giải mã; legacy = tài khoản còn dùng scheme 1, cần nâng cấp
+    private record PrivateKeys(byte[] signPkcs8, byte[] ecdhPkcs8, boolean legacy) {}
+
+    // Kiểm tra mật khẩu theo kdfScheme của tài khoản. Sai mật khẩu -> null.
+    private static PrivateKeys unlock(Document u, char[] password) {
         byte[] salt = B64.dec(u.getString("pwdSaltB64"));
         int iters = u.getInteger("pwdIters");
         byte[] expected = B64.dec(u.getString("pwdHashB64"));
-        byte[] actual = PBKDF2.deriveKey(oldPass, salt, iters, 32);
 
-        if (!PBKDF2.constantTimeEquals(expected, actual)) {
-            throw new IllegalArgumentException("Mật khẩu cũ không đúng!");
+        if (u.getInteger(UserDAO.FIELD_KDF_SCHEME, 1) == KeyProtector.SCHEME_HIERARCHY) {
+            // 1 PBKDF2 cho cả verifier lẫn 2 khóa wrap
+            KeyProtector.KeyHierarchy h = KeyProtector.deriveHierarchy(password, salt, iters);
+            if (!PBKDF2.constantTimeEquals(expected, h.authVerifier())) return null;
+            return new PrivateKeys(
+                    KeyProtector.unprotect(blob(u, "signPriv"), h.signWrapKey()),
+                    KeyProtector.unprotect(blob(u, "ecdhPriv"), h.ecdhWrapKey()),
+                    false);
         }
 
-        // 2. Giải mã Private Keys bằng mật khẩu CŨ
-        var signBlobOld = new KeyProtector.ProtectedBlob(
-                u.getString("signPrivEncB64"), u.getString("signPrivIvB64"),
-                u.getString("signPrivSaltKdfB64"), u.getInteger("signPrivKdfIters"));
-        var ecdhBlobOld = new KeyProtector.ProtectedBlob(
-                u.getString("ecdhPrivEncB64"), u.getString("ecdhPrivIvB64"),
-                u.getString("ecdhPrivSaltKdfB64"), u.getInteger("ecdhPrivKdfIters"));
-
-        byte[] signPrivBytes = KeyProtector.unprotect(signBlobOld, oldPass);
-        byte[] ecdhPrivBytes = KeyProtector.unprotect(ecdhBlobOld, oldPass);
-
-        // 3. Tạo Hash cho mật khẩu MỚI
-        byte[] newSalt = Rand.bytes(16);
-        byte[] newHash = PBKDF2.deriveKey(newPass, newSalt, iters, 32);
-
-        // 4. Mã hóa lại Private Keys bằng mật khẩu MỚI
-        var signBlobNew = KeyProtector.protect(signPrivBytes, newPass);
-        var ecdhBlobNew = KeyProtector.protect(ecdhPrivBytes, newPass);
-
-        // 5. Lưu xuống DB
-        userDAO.updateUserCredentials(username, 
-                B64.enc(newSalt), B64.enc(newHash),
-                signBlobNew.ciphertextB64(), signBlobNew.ivB64(), signBlobNew.saltB64(), signBlobNew.iters(),
-                ecdhBlobNew.ciphertextB64(), ecdhBlobNew.ivB64(), ecdhBlobNew.saltB64(), ecdhBlobNew.iters()
-        );
+        // Scheme 1: PBKDF2 cho hash, rồi thêm 1 lần cho mỗi private key
+        byte[] actual = PBKDF2.deriveKey(password, salt, iters, 32);
+        if (!PBKDF2.constantTimeEquals(expected, actual)) return null;
+        return new PrivateKeys(
+                KeyProtector.unprotect(blob(u, "signPriv"), password),
+                KeyProtector.unprotect(blob(u, "ecdhPriv"), password),
+                true);
+    }
+
+    private static KeyProtector.ProtectedBlob blob(Document u, String prefix) {
+        return new KeyProtector.ProtectedBlob(
+                u.getString(prefix + "EncB64"), u.getString(prefix + "IvB64"),
+                u.getString(prefix + "SaltKdfB64"), u.getInteger(prefix + "KdfIters", 0));
+    }
+
+    // Bộ credential scheme 2 với salt mới (không dùng lại salt của scheme cũ: master secret sẽ trùng hash cũ)
+    private static Document credentialFields(char[] password, byte[] signPkcs8, byte[] ecdhPkcs8) {
+        byte[] salt = Rand.bytes(16);
+        KeyProtector.KeyHierarchy h = KeyProtector.deriveHierarchy(password, salt, PWD_ITERS);
+        var signBlob = KeyProtector.protect(signPkcs8, h.signWrapKey());
+        var ecdhBlob = KeyProtector.protect(ecdhPkcs8, h.ecdhWrapKey());
+        return new Document(UserDAO.FIELD_KDF_SCHEME, KeyProtector.SCHEME_HIERARCHY)
+                .append("pwdSaltB64", B64.enc(salt))
+                .append("pwdHashB64", B64.enc(h.authVerifier()))
+                .append("pwdIters", PWD_ITERS)
+                .append("signPrivEncB64", signBlob.ciphertextB64())
+                .append("signPrivIvB64", signBlob.ivB64())
+                .append("ecdhPrivEncB64", ecdhBlob.ciphertextB64())
+                .append("ecdhPrivIvB64", ecdhBlob.ivB64());
     }
     public void updateProfileInfo(String username, String email, String fullName, String address, String gender) {
     // Mã hóa lại toàn bộ trước khi lưu
@@ -232,17 +237,64 @@ public class AuthService {
 }
 
 // Hàm cập nhật Avatar
-public void updateAvatar(String username, byte[] imageBytes) {
+// thumbs: size -> ảnh PNG đã thu nhỏ (tạo sẵn lúc upload)
+public void updateAvatar(String username, byte[] imageBytes, Map<Integer, byte[]> thumbs) {
     if (imageBytes == null || imageBytes.length == 0) return;
     // Chuyển ảnh sang Base64 rồi mã hóa AES System Key
     String base64Img = B64.enc(imageBytes);
     String encAvatar = profileSec.encrypt(base64Img);
-    userDAO.updateAvatar(username, encAvatar);
+    Map<Integer, byte[]> encThumbs = new HashMap<>();
+    thumbs.forEach((size, png) -> encThumbs.put(size, profileSec.encryptBytes(png)));
+    userDAO.updateAvatar(username, encAvatar, encThumbs, System.currentTimeMillis());
+}
+
+public record Avatar(byte[] bytes, long version) {}
+
+// Thumbnail đúng kích thước; avatar cũ chưa có thumbnail -> trả ảnh gốc
+public Avatar getAvatarThumb(String username, int size) {
+    Document doc = userDAO.getAvatarThumb(username, size);
+    if (doc == null) return new Avatar(null, 0L);
+    long version = UserDAO.avatarVersion(doc);
+    Document thumbs = doc.get(UserDAO.FIELD_AVATAR_THUMBS, Document.class);
+    Binary enc = (thumbs != null) ? thumbs.get(String.valueOf(size), Binary.class) : null;
+    if (enc != null) {
+        return new Avatar(profileSec.decryptBytes(enc.getData()), version);
+    }
+    return new Avatar(getUserAvatar(username), version);
+}
+
+// Nhiều avatar trong 1 query ($in); user chỉ có ảnh gốc (upload cũ) -> thêm 1 query $in lấy ảnh gốc của cả nhóm
+public Map<String, Avatar> getAvatarThumbs(Collection<String> usernames, int size) {
+    Map<String, Avatar> out = new HashMap<>();
+    List<String> legacy = new ArrayList<>();
+    for (Document doc : userDAO.findByUsernames(usernames, UserDAO.avatarThumbFields(size))) {
+        String u = doc.getString("username");
+        Document thumbs = doc.get(UserDAO.FIELD_AVATAR_THUMBS, Document.class);
+        Binary enc = (thumbs != null) ? thumbs.get(String.valueOf(size), Binary.class) : null;
+        if (enc != null) {
+            out.put(u, new Avatar(profileSec.decryptBytes(enc.getData()), UserDAO.avatarVersion(doc)));
+        } else {
+            legacy.add(u);
+        }
+    }
+    // User chưa có thumbnail (avatar cũ): lấy avatar gốc của cả nhóm trong 1 query
+    for (Document doc : userDAO.findByUsernames(legacy, UserDAO.legacyAvatarFields())) {
+        byte[] bytes = decryptAvatar(doc.getString(UserDAO.FIELD_ENC_AVATAR));
+        out.put(doc.getString("username"), new Avatar(bytes, UserDAO.avatarVersion(doc)));
+    }
+    return out;
+}
+
+public long getAvatarVersion(String username) {
+    return userDAO.getAvatarVersion(username);
 }
 
 //  Hàm lấy Avatar (Trả về bytes ảnh để hiển thị)
 public byte[] getUserAvatar(String username) {
-    String encAvatar = userDAO.getEncryptedAvatar(username);
+    return decryptAvatar(userDAO.getEncryptedAvatar(username));
+}
+
+private byte[] decryptAvatar(String encAvatar) {
     if (encAvatar == null) return null;
     
     try {
@@ -1,83 +1,116 @@
 /* ChatService.java */
 package com.securechat.service;
 
+import com.securechat.config.AppConfig;
+import com.securechat.dao.BinaryFields;
+import com.securechat.dao.ConversationDAO;
 import com.securechat.dao.FileDAO;
 import com.securechat.dao.MessageDAO;
+import com.securechat.dao.SchemaMigrator;
+import com.securechat.dao.SessionEpochDAO;
 import com.securechat.dao.UserDAO;
+import com.securechat.dao.WriteBatch;
 import com.securechat.model.DecryptedMessage;
 import com.securechat.security.*;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyPair;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class ChatService {
 
+    // Từ số tin này trở lên mới giải mã song song (ít tin thì chạy tuần tự rẻ hơn)
+    private static final int PARALLEL_THRESHOLD = 8;
+    // Virtual thread cho mỗi tin; scheduler tự chia đều trên các core
+    private static final ExecutorService CRYPTO_POOL = Executors.newVirtualThreadPerTaskExecutor();
+    public static final int FILE_CHUNK_SIZE = 1024 * 1024; // 1 MB / chunk
+    private static final int DECRYPT_WORKERS = Runtime.getRuntime().availableProcessors();
+    private static final byte[] MSG_KEY_INFO = "SecureChat msg key".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] WRAP_KEY_INFO = "SecureChat wrap key".getBytes(StandardCharsets.UTF_8);
+
+    static {
+        // Bắt đầu sinh sẵn khóa ephemeral ngay khi mở app, trước tin nhắn đầu tiên
+        EphemeralKeyPool.warmUp();
+    }
+
     private final UserDAO userDAO = new UserDAO();
     private final MessageDAO messageDAO = new MessageDAO();
     private final FileDAO fileDAO = new FileDAO();
+    private final ConversationDAO conversationDAO = new ConversationDAO();
+    private final KeyDirectory keyDirectory = new KeyDirectory(userDAO);
+    private final ContactGraph contactGraph = new ContactGraph(userDAO);
+    private final MessageCache messageCache = new MessageCache();
+    private final SessionEpochDAO sessionEpochDAO = new SessionEpochDAO();
+    private final SessionKeys sessionKeys = new SessionKeys(sessionEpochDAO,
+            AppConfig.SESSION_EPOCH_MESSAGES, AppConfig.SESSION_EPOCH_SECONDS);
+    private volatile boolean parallelDecrypt = true;
+    // Envelope: mã hóa payload 1 lần, chỉ wrap content key cho người nhận và cho mình
+    private volatile boolean envelopeMode = true;
+    // Session key: root key theo epoch, khóa từng tin dẫn xuất bằng HKDF (xem SessionKeys)
+    private volatile boolean sessionMode = AppConfig.SESSION_KEYS;
+
+    public void setParallelDecrypt(boolean parallelDecrypt) {
+        this.parallelDecrypt = parallelDecrypt;
+    }
 
-    public void sendMessage(AuthService.Session sender, String toUser, String plaintext, long ttlSeconds) {
-        Document receiverDoc = userDAO.findByUsername(toUser);
-        if (receiverDoc == null) {
-            throw new IllegalArgumentException("Receiver not found");
-        }
-        Document senderDoc = userDAO.findByUsername(sender.username());
-
-        long ts = System.currentTimeMillis();
-
-        Date expireAt = null;
-        if (ttlSeconds > 0) {
-            expireAt = new Date(ts + (ttlSeconds * 1000));
-        }
-
-        userDAO.addContact(sender.username(), toUser);
-        userDAO.addContact(toUser, sender.username()); 
-
-        byte[] digestInput = Canonical.digestInput(sender.username(), toUser, ts, plaintext);
-        byte[] digest = SHA256.hash(digestInput);
-        byte[] sig = Keys.signEd25519(sender.signPriv(), digest);
-
-        String payload
-                = "from=" + sender.username() + "\n"
-                + "to=" + toUser + "\n"
-                + "ts=" + ts + "\n"
-                + "msg=" + plaintext + "\n"
-                + "digestB64=" + B64.enc(digest) + "\n"
-                + "sigB64=" + B64.enc(sig) + "\n";
-        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+    public void setEnvelopeMode(boolean envelopeMode) {
+        this.envelopeMode = envelopeMode;
+    }
 
-        PublicKey bobEcdhPub = KeyProtector.decodeX25519Public(B64.dec(receiverDoc.getString("ecdhPubB64")));
-        createAndSaveMessage(sender.username(), toUser, null, ts, expireAt, payloadBytes, bobEcdhPub);
+    public void setSessionMode(boolean sessionMode) {
+        this.sessionMode = sessionMode;
+    }
 
-        PublicKey aliceEcdhPub = KeyProtector.decodeX25519Public(B64.dec(senderDoc.getString("ecdhPubB64")));
-        createAndSaveMessage(sender.username(), sender.username(), toUser, ts, expireAt, payloadBytes, aliceEcdhPub);
+    public void sendMessage(AuthService.Session sender, String toUser, String plaintext, long ttlSeconds) {
+        sendInternal(sender, toUser, plaintext, ttlSeconds);
     }
 
-    private void createAndSaveMessage(String from, String to, String originalTo, long ts, Date expireAt, byte[] payloadBytes, PublicKey recipientPub) {
-        KeyPair eph = Keys.genX25519();
+    // Bản mã hóa riêng cho 1 người (schema cũ); chỉ dựng document, việc ghi do sendInternal gom lại
+    private Document buildMessage(String from, String to, String originalTo, long ts, Date expireAt, byte[] payloadBytes, PublicKey recipientPub) {
+        KeyPair eph = EphemeralKeyPool.take();
         byte[] shared = Keys.x25519SharedSecret(eph.getPrivate(), recipientPub);
         byte[] iv = Rand.bytes(12);
-        byte[] aesKey = HKDF.deriveAes256(shared, iv, "SecureChat msg key".getBytes(StandardCharsets.UTF_8));
+        byte[] aesKey = HKDF.deriveAes256(shared, iv, MSG_KEY_INFO);
 
         String realTo = (originalTo != null) ? originalTo : to;
         byte[] aad = Canonical.aad(from, realTo, ts);
         byte[] ct = AesGcm.encrypt(aesKey, iv, payloadBytes, aad);
 
-        Document doc = new Document()
+        ObjectId id = new ObjectId();
+        Document doc = new Document("_id", id)
+                .append(MessageDAO.FIELD_SCHEMA, MessageDAO.SCHEMA_BINARY)
                 .append("from", from)
                 .append("to", to)
                 .append("ts", ts)
-                .append("ephPubB64", B64.enc(KeyProtector.pubEncoded(eph.getPublic())))
-                .append("ivB64", B64.enc(iv))
-                .append("ciphertextB64", B64.enc(ct))
+                .append(MessageDAO.FIELD_CONV_KEY, MessageDAO.convKey(from, realTo))
+                .append(MessageDAO.FIELD_EPH_PUB, BinaryFields.of(KeyProtector.pubEncoded(eph.getPublic())))
+                .append(MessageDAO.FIELD_IV, BinaryFields.of(iv))
+                .append(MessageDAO.FIELD_CIPHERTEXT, BinaryFields.of(ct))
                 .append("encAlg", "AES/GCM")
                 .append("kexAlg", "X25519")
                 .append("sigAlg", "Ed25519");
@@ -89,171 +122,600 @@ public class ChatService {
         if (originalTo != null) {
             doc.append("originalTo", originalTo);
         }
+        return doc;
+    }
+
+    private Document buildEnvelope(String from, String to, long ts, Date expireAt, byte[] payloadBytes,
+                                       PublicKey receiverPub, PublicKey senderPub) {
+        byte[] contentKey = Rand.bytes(32);
+        byte[] iv = Rand.bytes(12);
+        byte[] aad = Canonical.aad(from, to, ts);
+        byte[] ct = AesGcm.encrypt(contentKey, iv, payloadBytes, aad);
+
+        List<String> recipients = new ArrayList<>(List.of(to));
+        List<Document> keys = new ArrayList<>();
+        keys.add(wrapContentKey(to, receiverPub, contentKey, aad));
+        if (!from.equals(to)) {
+            recipients.add(from);
+            keys.add(wrapContentKey(from, senderPub, contentKey, aad));
+        }
+
+        ObjectId id = new ObjectId();
+        Document doc = new Document("_id", id)
+                .append(MessageDAO.FIELD_SCHEMA, MessageDAO.SCHEMA_ENVELOPE)
+                .append("from", from)
+                .append("to", recipients)
+                .append("originalTo", to)
+                .append("ts", ts)
+                .append(MessageDAO.FIELD_CONV_KEY, MessageDAO.convKey(from, to))
+                .append(MessageDAO.FIELD_IV, BinaryFields.of(iv))
+                .append(MessageDAO.FIELD_CIPHERTEXT, BinaryFields.of(ct))
+                .append(MessageDAO.FIELD_KEYS, keys)
+                .append("encAlg", "AES/GCM")
+                .append("kexAlg", "X25519")
+                .append("sigAlg", "Ed25519");
+
+        if (expireAt != null) {
+            doc.append("expireAt", expireAt);
+        }
+        return doc;
+    }
+
+    // Như envelope nhưng không wrap khóa: khóa tin lấy từ epoch hiện tại của chiều from -> to
+    private static Document buildSessionMessage(String from, String to, long ts, Date expireAt, byte[] payloadBytes,
+                                                SessionKeys.Step step) {
+        byte[] iv = Rand.bytes(12);
+        byte[] aad = Canonical.aad(from, to, ts);
+        byte[] ct = AesGcm.encrypt(step.messageKey(), iv, payloadBytes, aad);
+
+        List<String> recipients = new ArrayList<>(List.of(to));
+        if (!from.equals(to)) {
+            recipients.add(from);
+        }
 
-        messageDAO.insertMessage(doc);
+        ObjectId id = new ObjectId();
+        Document doc = new Document("_id", id)
+                .append(MessageDAO.FIELD_SCHEMA, MessageDAO.SCHEMA_SESSION)
+                .append("from", from)
+                .append("to", recipients)
+                .append("originalTo", to)
+                .append("ts", ts)
+                .append(MessageDAO.FIELD_CONV_KEY, MessageDAO.convKey(from, to))
+                .append(MessageDAO.FIELD_EPOCH, step.epochId())
+                .append(MessageDAO.FIELD_IDX, step.idx())
+                .append(MessageDAO.FIELD_IV, BinaryFields.of(iv))
+                .append(MessageDAO.FIELD_CIPHERTEXT, BinaryFields.of(ct))
+                .append("encAlg", "AES/GCM")
+                .append("kexAlg", "X25519")
+                .append("sigAlg", "Ed25519");
+
+        if (expireAt != null) {
+            doc.append("expireAt", expireAt);
+        }
+        return doc;
+    }
+
+    // Wrap content key cho 1 người: X25519 (ephemeral) -> HKDF -> AES-GCM
+    static Document wrapContentKey(String rcpt, PublicKey rcptPub, byte[] contentKey, byte[] aad) {
+        KeyPair eph = EphemeralKeyPool.take();
+        byte[] shared = Keys.x25519SharedSecret(eph.getPrivate(), rcptPub);
+        byte[] wrapIv = Rand.bytes(12);
+        byte[] kek = HKDF.deriveAes256(shared, wrapIv, WRAP_KEY_INFO);
+        byte[] wrapped = AesGcm.encrypt(kek, wrapIv, contentKey, aad);
+        return new Document(MessageDAO.FIELD_RCPT, rcpt)
+                .append(MessageDAO.FIELD_EPH_PUB, BinaryFields.of(KeyProtector.pubEncoded(eph.getPublic())))
+                .append(MessageDAO.FIELD_IV, BinaryFields.of(wrapIv))
+                .append(MessageDAO.FIELD_WRAPPED, BinaryFields.of(wrapped));
+    }
+
+    static byte[] unwrapContentKey(AuthService.Session session, Document d, byte[] aad) {
+        byte[] kek = new byte[32];
+        byte[] key = new byte[32];
+        try {
+            unwrapContentKey(session, d, aad, kek, key);
+        } finally {
+            Arrays.fill(kek, (byte) 0);
+        }
+        return key;
+    }
+
+    // Unwrap khóa 32 byte vào keyOut, kek là mảng tạm của caller (dùng lại giữa các tin)
+    private static void unwrapContentKey(AuthService.Session session, Document d, byte[] aad, byte[] kek, byte[] keyOut) {
+        List<Document> keys = d.getList(MessageDAO.FIELD_KEYS, Document.class);
+        if (keys != null) {
+            for (Document k : keys) {
+                if (session.username().equals(k.getString(MessageDAO.FIELD_RCPT))) {
+                    PublicKey ephPub = KeyProtector.decodeX25519Public(BinaryFields.get(k, MessageDAO.FIELD_EPH_PUB, MessageDAO.LEGACY_EPH_PUB));
+                    byte[] wrapIv = BinaryFields.get(k, MessageDAO.FIELD_IV, MessageDAO.LEGACY_IV);
+                    byte[] shared = Keys.x25519SharedSecret(session.ecdhPriv(), ephPub);
+                    HKDF.derive(shared, wrapIv, WRAP_KEY_INFO, kek, 0, kek.length);
+                    byte[] wrapped = BinaryFields.get(k, MessageDAO.FIELD_WRAPPED, MessageDAO.FIELD_WRAPPED);
+                    int n = AesGcm.decrypt(kek, wrapIv, ByteBuffer.wrap(wrapped), ByteBuffer.wrap(keyOut), aad);
+                    if (n != keyOut.length) throw new IllegalArgumentException("Invalid wrapped key length");
+                    return;
+                }
+            }
+        }
+        throw new IllegalArgumentException("No wrapped key for " + session.username());
     }
 
+    // Sắp xếp theo hoạt động gần nhất (từ bảng conversations), sau đó tới các liên hệ đã lưu chưa nhắn tin
     public List<String> getRecentContacts(String myUser) {
+        List<String> recent = conversationDAO.findPartners(myUser);
+        if (!SchemaMigrator.isConversationsBackfilled()) {
+            // Bảng tóm tắt chưa dựng xong từ tin cũ: partner chỉ có trong tin cũ vẫn phải hiện
+            recent = Stream.concat(recent.stream(), messageDAO.getContactsFromMessages(myUser).stream())
+                    .distinct()
+                    .collect(Collectors.toList());
+        }
         List<String> saved = userDAO.getSavedContacts(myUser);
-        List<String> fromMsgs = messageDAO.getContactsFromMessages(myUser);
-        return Stream.concat(saved.stream(), fromMsgs.stream())
+        contactGraph.seed(myUser, saved);
+        List<String> contacts = Stream.concat(recent.stream(), saved.stream())
+                .filter(u -> !u.equals(myUser))
                 .distinct()
                 .collect(Collectors.toList());
+        // Khóa của cả danh bạ trong 1 query: mở chat / gửi tin sau đó không phải hỏi DB nữa
+        keyDirectory.prefetch(contacts);
+        return contacts;
+    }
+
+    public Map<String, Integer> getUnreadCounts(String myUser) {
+        return conversationDAO.getUnreadCounts(myUser);
     }
 
     public List<DecryptedMessage> loadConversation(AuthService.Session session, String partner, int limit) {
         List<Document> docs = messageDAO.findConversation(session.username(), partner, limit);
-        List<DecryptedMessage> out = new ArrayList<>();
-        for (Document d : docs) {
-            DecryptedMessage dm = new DecryptedMessage();
-            try {
-                String from = d.getString("from");
-                String originalTo = d.getString("originalTo");
-                String realTo = (originalTo != null) ? originalTo : d.getString("to");
-                long ts = d.getLong("ts");
-                PublicKey ephPub = KeyProtector.decodeX25519Public(B64.dec(d.getString("ephPubB64")));
-                byte[] iv = B64.dec(d.getString("ivB64"));
-                byte[] ct = B64.dec(d.getString("ciphertextB64"));
-                byte[] shared = Keys.x25519SharedSecret(session.ecdhPriv(), ephPub);
-                byte[] aesKey = HKDF.deriveAes256(shared, iv, "SecureChat msg key".getBytes(StandardCharsets.UTF_8));
-                byte[] aad = Canonical.aad(from, realTo, ts);
-                byte[] payloadBytes = AesGcm.decrypt(aesKey, iv, ct, aad);
-                String payload = new String(payloadBytes, StandardCharsets.UTF_8);
-                String msg = extract(payload, "msg");
-                String sigB64 = extract(payload, "sigB64");
-                Document senderDoc = userDAO.findByUsername(from);
-                if (senderDoc != null) {
-                    PublicKey senderSignPub = KeyProtector.decodeEd25519Public(B64.dec(senderDoc.getString("signPubB64")));
-                    byte[] digestInput = Canonical.digestInput(from, realTo, ts, msg);
-                    byte[] digest = SHA256.hash(digestInput);
-                    dm.signatureValid = Keys.verifyEd25519(senderSignPub, digest, B64.dec(sigB64));
+        conversationDAO.markRead(session.username(), partner);
+        return decryptAll(session, partner, docs);
+    }
+
+    /**
+     * Trang cũ hơn (cuộn lên): "limit" tin ngay trước tin (beforeTs, beforeId).
+     * @param session
+     * @param partner
+     * @param beforeTs ts của tin cũ nhất client đang có
+     * @param beforeId _id (hex) của tin đó
+     * @param limit
+     * @return theo thứ tự thời gian tăng dần, rỗng nếu đã hết lịch sử
+     */
+    public List<DecryptedMessage> loadConversationBefore(AuthService.Session session, String partner, long beforeTs, String beforeId, int limit) {
+        List<Document> docs = messageDAO.findConversationBefore(session.username(), partner, beforeTs, beforeId, limit);
+        return decryptAll(session, partner, docs);
+    }
+
+    /**
+     * Đồng bộ kiểu delta: chỉ tải và giải mã các tin sau cursor (afterTs, afterId).
+     * @param session
+     * @param partner
+     * @param afterTs ts của tin cuối cùng client đang có
+     * @param afterId _id (hex) của tin cuối cùng, có thể null
+     * @return các tin mới, theo thứ tự thời gian
+     */
+    public List<DecryptedMessage> loadConversationSince(AuthService.Session session, String partner, long afterTs, String afterId) {
+        List<Document> docs = messageDAO.findConversationSince(session.username(), partner, afterTs, afterId);
+        if (!docs.isEmpty()) {
+            conversationDAO.markRead(session.username(), partner);
+        }
+        return decryptAll(session, partner, docs);
+    }
+
+    public MessageCache.Stats getMessageCacheStats() {
+        return messageCache.stats();
+    }
+
+    private List<DecryptedMessage> decryptAll(AuthService.Session session, String partner, List<Document> docs) {
+        // 1. Lấy từ cache các tin đã giải mã trước đó (không tốn crypto)
+        DecryptedMessage[] out = new DecryptedMessage[docs.size()];
+        byte[][] hashes = new byte[docs.size()][];
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < docs.size(); i++) {
+            Document d = docs.get(i);
+            hashes[i] = ciphertextHash(d);
+            out[i] = messageCache.get(idOf(d), hashes[i]);
+            if (out[i] == null) {
+                missing.add(i);
+            }
+        }
+
+        // 2. Giải mã các tin còn thiếu
+        // Nạp trước khóa của các người gửi trong trang (1 query $in) thay vì lookup từng tin
+        if (!missing.isEmpty()) {
+            keyDirectory.prefetch(missing.stream().map(i -> docs.get(i).getString("from")).collect(Collectors.toSet()));
+            // Tin session: unwrap root key 1 lần cho mỗi epoch, trước khi giải mã song song
+            Set<ObjectId> epochs = missing.stream()
+                    .map(i -> docs.get(i).getObjectId(MessageDAO.FIELD_EPOCH))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toSet());
+            if (!epochs.isEmpty()) {
+                sessionKeys.prefetch(session, epochs);
+            }
+        }
+        if (!parallelDecrypt || missing.size() < PARALLEL_THRESHOLD) {
+            decryptSlice(session, docs, missing, 0, 1, out);
+        } else {
+            // Mỗi worker nhận 1 phần tin (xen kẽ theo k) và 1 bộ buffer tạm dùng lại cho mọi tin của nó
+            // -> khóa / plaintext không cấp phát lại cho từng tin. Lỗi của tin nào chỉ ảnh hưởng tin đó.
+            int workers = Math.min(DECRYPT_WORKERS, missing.size());
+            List<Future<?>> futures = new ArrayList<>(workers);
+            for (int w = 0; w < workers; w++) {
+                int first = w;
+                futures.add(CRYPTO_POOL.submit(() -> decryptSlice(session, docs, missing, first, workers, out)));
+            }
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    // Các tin worker này chưa kịp giải mã được đánh lỗi bên dưới
                 }
-                dm.from = from;
-                dm.to = realTo;
-                dm.ts = ts;
-                dm.plaintext = msg;
-                out.add(dm);
-            } catch (Exception ex) {
-                dm.plaintext = "(DECRYPT ERROR)";
-                dm.signatureValid = false;
-                dm.from = d.getString("from");
-                dm.ts = d.getLong("ts");
-                out.add(dm);
+            }
+            for (int i : missing) {
+                if (out[i] == null) out[i] = decryptError(docs.get(i));
             }
         }
-        return out;
+
+        // 3. Lưu vào cache (không cache tin lỗi, tin chưa kiểm được chữ ký -> lần sau kiểm lại)
+        for (int i : missing) {
+            if (out[i].to != null && out[i].signatureChecked) {
+                messageCache.put(out[i].id, hashes[i], partner, out[i]);
+            }
+        }
+        return Arrays.asList(out);
     }
 
-    private static String extract(String payload, String key) {
-        String[] lines = payload.split("\n");
-        for (String line : lines) {
-            int idx = line.indexOf('=');
-            if (idx > 0) {
-                String k = line.substring(0, idx).trim();
-                if (k.equals(key)) {
-                    return line.substring(idx + 1).trim();
-                }
+    private static String idOf(Document d) {
+        ObjectId id = d.getObjectId("_id");
+        return (id != null) ? id.toHexString() : null;
+    }
+
+    // Hash trên byte ciphertext thô -> không đổi khi document được migrate sang Binary
+    private static byte[] ciphertextHash(Document d) {
+        byte[] ct = BinaryFields.get(d, MessageDAO.FIELD_CIPHERTEXT, MessageDAO.LEGACY_CIPHERTEXT);
+        return SHA256.hash((ct != null) ? ct : new byte[0]);
+    }
+
+    // Giải mã các tin missing[first], missing[first + step], ... với 1 bộ buffer tạm
+    private void decryptSlice(AuthService.Session session, List<Document> docs, List<Integer> missing,
+                              int first, int step, DecryptedMessage[] out) {
+        DecryptScratch scratch = new DecryptScratch();
+        try {
+            for (int k = first; k < missing.size(); k += step) {
+                int i = missing.get(k);
+                out[i] = decryptOne(session, docs.get(i), scratch);
             }
+        } finally {
+            scratch.wipe();
         }
-        return "";
     }
 
-    public boolean checkUserExists(String username) {
-        return userDAO.findByUsername(username) != null;
+    // Buffer tạm của 1 worker giải mã; nội dung chỉ hợp lệ trong 1 lần decryptOne
+    private static final class DecryptScratch {
+        final byte[] key = new byte[32];
+        final byte[] kek = new byte[32];
+        ByteBuffer plain = ByteBuffer.allocate(1024);
+
+        ByteBuffer plain(int len) {
+            if (plain.capacity() < len) {
+                Arrays.fill(plain.array(), (byte) 0);
+                plain = ByteBuffer.allocate(Math.max(len, plain.capacity() * 2));
+            }
+            plain.clear();
+            return plain;
+        }
+
+        void wipe() {
+            Arrays.fill(key, (byte) 0);
+            Arrays.fill(kek, (byte) 0);
+            Arrays.fill(plain.array(), (byte) 0);
+        }
+    }
+
+    private DecryptedMessage decryptOne(AuthService.Session session, Document d, DecryptScratch scratch) {
+        DecryptedMessage dm = new DecryptedMessage();
+        dm.id = idOf(d);
+        try {
+            String from = d.getString("from");
+            String originalTo = d.getString("originalTo");
+            String realTo = (originalTo != null) ? originalTo : d.getString("to");
+            long ts = d.getLong("ts");
+            byte[] iv = BinaryFields.get(d, MessageDAO.FIELD_IV, MessageDAO.LEGACY_IV);
+            byte[] ct = BinaryFields.get(d, MessageDAO.FIELD_CIPHERTEXT, MessageDAO.LEGACY_CIPHERTEXT);
+            byte[] aad = Canonical.aad(from, realTo, ts);
+            byte[] aesKey = scratch.key;
+            int schema = d.getInteger(MessageDAO.FIELD_SCHEMA, 0);
+            if (schema == MessageDAO.SCHEMA_SESSION) {
+                ObjectId epochId = d.getObjectId(MessageDAO.FIELD_EPOCH);
+                SessionKeys.messageKey(sessionKeys.rootKey(session, epochId), epochId, d.getInteger(MessageDAO.FIELD_IDX), aesKey);
+            } else if (schema == MessageDAO.SCHEMA_ENVELOPE) {
+                unwrapContentKey(session, d, aad, scratch.kek, aesKey);
+            } else {
+                PublicKey ephPub = KeyProtector.decodeX25519Public(BinaryFields.get(d, MessageDAO.FIELD_EPH_PUB, MessageDAO.LEGACY_EPH_PUB));
+                byte[] shared = Keys.x25519SharedSecret(session.ecdhPriv(), ephPub);
+                HKDF.derive(shared, iv, MSG_KEY_INFO, aesKey, 0, aesKey.length);
+            }
+            // Plaintext giải mã vào buffer của worker, decode thẳng từ đó
+            ByteBuffer plain = scratch.plain(Math.max(0, ct.length - AesGcm.TAG_BYTES));
+            AesGcm.decrypt(aesKey, iv, ByteBuffer.wrap(ct), plain, aad);
+            plain.flip();
+            MessagePayload.Fields payload = MessagePayload.decode(plain);
+            String msg = payload.msg();
+            PublicKey senderSignPub = keyDirectory.signPub(from);
+            if (senderSignPub != null) {
+                byte[] digestInput = Canonical.digestInput(from, realTo, ts, msg);
+                byte[] digest = SHA256.hash(digestInput);
+                dm.signatureValid = Keys.verifyEd25519(senderSignPub, digest, payload.sig());
+                dm.signatureChecked = true;
+            }
+            dm.from = from;
+            dm.to = realTo;
+            dm.ts = ts;
+            dm.plaintext = msg;
+        } catch (Exception ex) {
+            return decryptError(d);
+        }
+        return dm;
     }
 
-    public List<String> checkNewMessages(String myUser, long lastCheckTime) {
-        return messageDAO.getSendersSince(myUser, lastCheckTime);
+    private static DecryptedMessage decryptError(Document d) {
+        DecryptedMessage dm = new DecryptedMessage();
+        dm.id = idOf(d);
+        dm.plaintext = "(DECRYPT ERROR)";
+        dm.signatureValid = false;
+        dm.from = d.getString("from");
+        dm.ts = d.getLong("ts");
+        return dm;
+    }
+
+    public boolean checkUserExists(String username) {
+        return userDAO.exists(username);
     }
 
     // [CẬP NHẬT] Xóa liên hệ thì xóa luôn cả tin nhắn
     public void removeSavedContact(String myUsername, String partnerUsername) {
         // 1. Xóa khỏi danh sách bạn bè đã lưu
         userDAO.removeContact(myUsername, partnerUsername);
+        contactGraph.removeContact(myUsername, partnerUsername);
         
         // 2. Xóa sạch tin nhắn liên quan đến người này (trong hộp thư của mình)
-        messageDAO.deleteConversation(myUsername, partnerUsername);
+        Set<ObjectId> epochs = messageDAO.deleteConversation(myUsername, partnerUsername);
+        conversationDAO.delete(myUsername, partnerUsername);
+        messageCache.invalidateConversation(partnerUsername);
+
+        // 3. Epoch session không còn tin nào tham chiếu -> xóa. Epoch trẻ hơn SESSION_EPOCH_SECONDS
+        //    có thể vẫn đang được dùng để gửi (máy này hoặc máy khác) nên giữ lại.
+        epochs.removeAll(messageDAO.findReferencedEpochs(epochs));
+        sessionEpochDAO.deleteByIds(epochs, System.currentTimeMillis() - AppConfig.SESSION_EPOCH_SECONDS * 1000);
+    }
+
+    // Gọi khi đăng xuất: xóa root key session khỏi bộ nhớ
+    public void clearKeys() {
+        sessionKeys.clear();
     }
     
     private void sendInternal(AuthService.Session sender, String toUser, String payloadContent, long ttlSeconds) {
-        Document receiverDoc = userDAO.findByUsername(toUser);
-        if (receiverDoc == null) throw new IllegalArgumentException("Receiver not found");
-        Document senderDoc = userDAO.findByUsername(sender.username());
+        KeyDirectory.UserKeys receiverKeys = keyDirectory.lookup(toUser);
+        if (receiverKeys == null) throw new IllegalArgumentException("Receiver not found");
 
         long ts = System.currentTimeMillis();
         Date expireAt = (ttlSeconds > 0) ? new Date(ts + (ttlSeconds * 1000)) : null;
 
-        userDAO.addContact(sender.username(), toUser);
-        userDAO.addContact(toUser, sender.username()); 
 
         // Ký tên vào nội dung (Digital Signature)
         byte[] digestInput = Canonical.digestInput(sender.username(), toUser, ts, payloadContent);
         byte[] digest = SHA256.hash(digestInput);
         byte[] sig = Keys.signEd25519(sender.signPriv(), digest);
 
-        String payload = "from=" + sender.username() + "\n"
-                + "to=" + toUser + "\n"
-                + "ts=" + ts + "\n"
-                + "msg=" + payloadContent + "\n" // <-- Payload ở đây
-                + "digestB64=" + B64.enc(digest) + "\n"
-                + "sigB64=" + B64.enc(sig) + "\n";
-        
-        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        // Payload nhị phân (length-prefixed), xem MessagePayload
+        byte[] payloadBytes = MessagePayload.encode(sender.username(), toUser, ts, payloadContent, digest, sig);
+
+        // Mọi write của lần gửi gom vào 1 batch -> 1 round trip (xem WriteBatch)
+        WriteBatch batch = new WriteBatch();
+        ObjectId receiverCopy;
+        ObjectId senderCopy;
+        SessionKeys.Step step = null;
+        if (sessionMode) {
+            // 1 document như envelope; epoch mới thì ghi kèm document epoch trong cùng batch
+            step = sessionKeys.next(sender.username(), toUser, ttlSeconds, receiverKeys.ecdhPub(), sender.ecdhPub());
+            if (step.epochDoc() != null) {
+                sessionEpochDAO.insertEpoch(batch, step.epochDoc());
+            }
+            Document msg = buildSessionMessage(sender.username(), toUser, ts, expireAt, payloadBytes, step);
+            messageDAO.insertMessage(batch, msg);
+            receiverCopy = msg.getObjectId("_id");
+            senderCopy = receiverCopy;
+        } else if (envelopeMode) {
+            // 1 document, payload mã hóa 1 lần, content key wrap cho Bob và cho chính mình
+            Document env = buildEnvelope(sender.username(), toUser, ts, expireAt, payloadBytes, receiverKeys.ecdhPub(), sender.ecdhPub());
+            messageDAO.insertMessage(batch, env);
+            receiverCopy = env.getObjectId("_id");
+            senderCopy = receiverCopy;
+        } else {
+            // Mã hóa E2E cho người nhận (Bob) trên virtual thread, song song với bản của chính mình
+            Future<Document> forReceiver = CRYPTO_POOL.submit(() ->
+                    buildMessage(sender.username(), toUser, null, ts, expireAt, payloadBytes, receiverKeys.ecdhPub()));
+
+            // Mã hóa E2E cho chính mình (Alice - để đồng bộ trên nhiều thiết bị)
+            Document forSender = buildMessage(sender.username(), sender.username(), toUser, ts, expireAt, payloadBytes, sender.ecdhPub());
+            Document forBob = join(forReceiver);
+            messageDAO.insertMessage(batch, forBob);
+            messageDAO.insertMessage(batch, forSender);
+            receiverCopy = forBob.getObjectId("_id");
+            senderCopy = forSender.getObjectId("_id");
+        }
 
-        // Mã hóa E2E cho người nhận (Bob)
-        PublicKey bobEcdhPub = KeyProtector.decodeX25519Public(B64.dec(receiverDoc.getString("ecdhPubB64")));
-        createAndSaveMessage(sender.username(), toUser, null, ts, expireAt, payloadBytes, bobEcdhPub);
+        // Cập nhật bảng tóm tắt hội thoại của cả 2 bên
+        conversationDAO.recordMessage(batch, toUser, sender.username(), sender.username(), ts, receiverCopy, !toUser.equals(sender.username()));
+        if (!toUser.equals(sender.username())) {
+            conversationDAO.recordMessage(batch, sender.username(), toUser, sender.username(), ts, senderCopy, false);
+        }
 
-        // Mã hóa E2E cho chính mình (Alice - để đồng bộ trên nhiều thiết bị)
-        PublicKey aliceEcdhPub = KeyProtector.decodeX25519Public(B64.dec(senderDoc.getString("ecdhPubB64")));
-        createAndSaveMessage(sender.username(), sender.username(), toUser, ts, expireAt, payloadBytes, aliceEcdhPub);
+        // Danh bạ của mình: chỉ thêm $addToSet ở tin đầu tiên với partner mới (cache ContactGraph).
+        // Danh bạ người nhận do client của họ quản lý (có thể vừa xóa mình) -> luôn $addToSet,
+        // rẻ và idempotent, lại nằm chung round trip của batch.
+        boolean newForSender = contactGraph.ensureContact(batch, sender.username(), toUser);
+        if (!toUser.equals(sender.username())) {
+            userDAO.addContact(batch, toUser, sender.username());
+        }
+
+        batch.execute();
+        if (step != null) sessionKeys.confirmSaved(step);
+        if (newForSender) contactGraph.recordContact(sender.username(), toUser);
+    }
+
+    private static <T> T join(Future<T> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while encrypting", e);
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof RuntimeException re) ? re : new IllegalStateException(e.getCause());
+        }
     }
 
     // --- [MỚI] HÀM GỬI FILE AN TOÀN ---
-    public void sendFile(AuthService.Session sender, String toUser, byte[] fileBytes, String fileName, long ttlSeconds) {
-        // 1. Tạo khóa ngẫu nhiên cho file này (FileKey)
+    // Đọc file theo từng chunk cố định, mỗi chunk mã hóa AES-GCM với nonce + AAD riêng
+    // -> heap chỉ giữ ~1 chunk, không còn giới hạn 16MB của 1 document BSON.
+    public void sendFile(AuthService.Session sender, String toUser, Path file, long ttlSeconds) throws IOException {
+        // 1. Tạo khóa ngẫu nhiên cho file này (FileKey) + tiền tố nonce 8 byte
         byte[] fileKey = Rand.bytes(32); // AES-256
-        byte[] fileIv = Rand.bytes(12);
-        
-        // 2. Mã hóa file
-        byte[] encryptedFileBytes = AesGcm.encrypt(fileKey, fileIv, fileBytes, null);
-        String encryptedBlob = B64.enc(encryptedFileBytes);
-        
-        // 3. Lưu file lên Server (Server chỉ thấy đống rác encryptedBlob)
+        byte[] noncePrefix = Rand.bytes(8);
         String fileId = UUID.randomUUID().toString();
-        fileDAO.saveFile(fileId, encryptedBlob, ttlSeconds);
-        
+
+        // 2. Mã hóa và upload từng chunk
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            int total = (int) Math.max(1, (size + FILE_CHUNK_SIZE - 1) / FILE_CHUNK_SIZE);
+            // 2 buffer dùng lại cho mọi chunk: đọc file vào buffer direct (không copy qua heap),
+            // mã hóa thẳng sang buffer ciphertext; chỉ còn 1 bản copy đúng độ dài cho BSON Binary
+            ByteBuffer buf = ByteBuffer.allocateDirect(FILE_CHUNK_SIZE);
+            ByteBuffer enc = ByteBuffer.allocate(FILE_CHUNK_SIZE + AesGcm.TAG_BYTES);
+            byte[] nonce = new byte[12];
+            try {
+                for (int i = 0; i < total; i++) {
+                    buf.clear();
+                    while (buf.hasRemaining() && ch.read(buf) > 0) {
+                        // đọc cho tới khi đầy chunk hoặc hết file
+                    }
+                    buf.flip();
+                    enc.clear();
+                    int n = AesGcm.encrypt(fileKey, chunkNonce(noncePrefix, i, nonce), buf, enc, Canonical.chunkAad(fileId, i, total));
+                    fileDAO.saveChunk(fileId, i, Arrays.copyOf(enc.array(), n), ttlSeconds);
+                }
+                // 3. Header ghi sau cùng
+                fileDAO.saveChunkedHeader(fileId, FILE_CHUNK_SIZE, total, size, ttlSeconds);
+            } catch (IOException | RuntimeException e) {
+                fileDAO.deleteFile(fileId); // dọn các chunk đã upload dở
+                throw e;
+            }
+        }
+
         // 4. Tạo bản tin đặc biệt chứa chìa khóa
-        // Format: [FILE]:FileID | Key_Base64 | IV_Base64 | FileName
-        String specialMsg = "[FILE]:" + fileId + "|" + B64.enc(fileKey) + "|" + B64.enc(fileIv) + "|" + fileName;
-        
+        // Format: [FILE]:FileID | Key_Base64 | IV_Base64 (file chunk: tiền tố nonce) | FileName
+        String specialMsg = "[FILE]:" + fileId + "|" + B64.enc(fileKey) + "|" + B64.enc(noncePrefix) + "|" + file.getFileName();
+
         // 5. Gửi bản tin này đi (nó sẽ được mã hóa E2E lần nữa bởi sendInternal)
         sendInternal(sender, toUser, specialMsg, ttlSeconds);
     }
 
+    // Nonce 12 byte = tiền tố ngẫu nhiên 8 byte || index chunk (big-endian), ghi vào mảng dùng lại
+    private static byte[] chunkNonce(byte[] prefix8, int index, byte[] into12) {
+        ByteBuffer.wrap(into12).put(prefix8).putInt(index);
+        return into12;
+    }
+
+    // Nhận plaintext của từng chunk; buffer được dùng lại cho chunk sau -> phải xử lý xong ngay
+    private interface PlainSink {
+        void accept(int index, ByteBuffer plain) throws IOException;
+    }
+
+    // Theo dõi tiến độ tải file + cho phép hủy giữa chừng
+    public interface DownloadListener {
+        default void onProgress(long bytesDone, long bytesTotal) {}
+        default boolean isCancelled() { return false; }
+    }
+
     // --- [MỚI] HÀM TẢI VÀ GIẢI MÃ FILE ---
     // Hàm này sẽ được gọi từ UI khi user click vào tin nhắn [FILE]
-    public byte[] downloadAndDecryptFile(String metadataProtocolString) {
+    // File dạng chunk được giải mã và ghi ra "out" từng chunk một.
+    public void downloadAndDecryptFile(String metadataProtocolString, OutputStream out) throws IOException {
+        decryptFile(metadataProtocolString, false,
+                (index, plain) -> out.write(plain.array(), plain.arrayOffset() + plain.position(), plain.remaining()),
+                new DownloadListener() {});
+    }
+
+    /**
+     * Tải, giải mã từng chunk và ghi thẳng xuống đĩa qua FileChannel.
+     * Ghi vào file tạm "*.part" rồi mới move sang target -> hủy / lỗi giữa chừng không để lại file hỏng.
+     * Heap chỉ giữ vài buffer cỡ 1 chunk.
+     * @throws CancellationException nếu listener báo hủy
+     */
+    public void downloadFileTo(String metadataProtocolString, Path target, DownloadListener listener) throws IOException {
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        boolean ok = false;
+        try (FileChannel ch = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Buffer direct: FileChannel ghi thẳng, không qua bản copy tạm của JDK
+            decryptFile(metadataProtocolString, true, (index, plain) -> {
+                while (plain.hasRemaining()) {
+                    ch.write(plain);
+                }
+            }, listener);
+            ch.force(false);
+            ok = true;
+        } finally {
+            if (!ok) {
+                Files.deleteIfExists(part);
+            }
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void decryptFile(String metadataProtocolString, boolean direct, PlainSink sink, DownloadListener listener) throws IOException {
         // Input: [FILE]:FileID|Key|IV|Name
         try {
             String content = metadataProtocolString.substring(7); // Bỏ "[FILE]:"
             String[] parts = content.split("\\|");
-            if (parts.length < 3) throw new IllegalArgumentException("Inva  lid file format");
+            if (parts.length < 3) throw new IllegalArgumentException("Invalid file format");
             
             String fileId = parts[0];
             byte[] fileKey = B64.dec(parts[1]);
             byte[] fileIv = B64.dec(parts[2]);
-            
-            // 1. Tải blob từ server
-            String encryptedBlob = fileDAO.getFileContent(fileId);
-            if (encryptedBlob == null) throw new IllegalArgumentException("File not found on server (maybe expired)");
-            
-            // 2. Giải mã
-            byte[] encryptedBytes = B64.dec(encryptedBlob);
-            return AesGcm.decrypt(fileKey, fileIv, encryptedBytes, null);
+
+            Document header = fileDAO.getFileHeader(fileId);
+            if (header == null) throw new IllegalArgumentException("File not found on server (maybe expired)");
+
+            if (header.getInteger(FileDAO.FIELD_SCHEMA, 0) != FileDAO.SCHEMA_CHUNKED) {
+                // File cũ: 1 blob duy nhất (tối đa 10MB) -> giải mã 1 lần
+                byte[] encryptedBytes = fileDAO.getFileBytes(fileId);
+                if (encryptedBytes == null) throw new IllegalArgumentException("File not found on server (maybe expired)");
+                byte[] plain = AesGcm.decrypt(fileKey, fileIv, encryptedBytes, null);
+                sink.accept(0, ByteBuffer.wrap(plain));
+                listener.onProgress(plain.length, plain.length);
+                return;
+            }
+
+            int total = header.getInteger(FileDAO.FIELD_CHUNKS);
+            long size = header.get(FileDAO.FIELD_SIZE, Number.class).longValue();
+            int chunkSize = header.getInteger(FileDAO.FIELD_CHUNK_SIZE, FILE_CHUNK_SIZE);
+            // 1 buffer plaintext + 1 nonce dùng lại cho mọi chunk
+            ByteBuffer plain = direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+            byte[] nonce = new byte[12];
+            long[] done = {0};
+            int read = fileDAO.streamChunks(fileId, (index, enc) -> {
+                if (listener.isCancelled()) throw new CancellationException("Download cancelled");
+                plain.clear();
+                int n = AesGcm.decrypt(fileKey, chunkNonce(fileIv, index, nonce), ByteBuffer.wrap(enc), plain, Canonical.chunkAad(fileId, index, total));
+                plain.flip();
+                sink.accept(index, plain);
+                done[0] += n;
+                listener.onProgress(done[0], size);
+            });
+            if (read != total) throw new IllegalArgumentException("File is incomplete (" + read + "/" + total + " chunks)");
             
         } catch (IllegalArgumentException e) {
             throw new RuntimeException("Download failed: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,86 @@
+/* ContactGraph.java */
+package com.securechat.service;
+
+import com.securechat.dao.UserDAO;
+import com.securechat.dao.WriteBatch;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache trong bộ nhớ của danh bạ đã lưu (cạnh có hướng owner -> partner).
+ * Chỉ dùng cho danh bạ của chính user đang đăng nhập: gửi tin chỉ gọi $addToSet khi cạnh chưa có.
+ * Danh bạ của người khác có thể bị client của họ sửa bất cứ lúc nào nên không cache.
+ * - Danh bạ của một owner được nạp từ getSavedContacts (hoặc seed từ chỗ đã đọc sẵn).
+ * - Sau REFRESH_MS thì nạp lại, để thay đổi từ client khác (xóa liên hệ...) không bị bỏ qua mãi.
+ */
+public class ContactGraph {
+
+    private static final int MAX_OWNERS = 256;
+    private static final long REFRESH_MS = 10 * 60 * 1000; // 10 phút
+
+    private record Node(Set<String> partners, long loadedAt) {}
+
+    private final UserDAO userDAO;
+
+    // accessOrder = true -> LRU
+    private final Map<String, Node> owners = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Node> eldest) {
+            return size() > MAX_OWNERS;
+        }
+    };
+
+    public ContactGraph(UserDAO userDAO) {
+        this.userDAO = userDAO;
+    }
+
+    /**
+     * Đảm bảo partner nằm trong danh bạ của owner; chỉ thêm $addToSet vào batch khi cạnh chưa có.
+     * Gọi recordContact sau khi batch ghi thành công.
+     * @return true nếu đã thêm write vào batch
+     */
+    public boolean ensureContact(WriteBatch batch, String owner, String partner) {
+        if (hasContact(owner, partner)) {
+            return false;
+        }
+        userDAO.addContact(batch, owner, partner);
+        return true;
+    }
+
+    public void recordContact(String owner, String partner) {
+        synchronized (owners) {
+            Node n = owners.get(owner);
+            if (n != null) n.partners().add(partner);
+        }
+    }
+
+    // Gọi khi đã đọc danh bạ của owner ở chỗ khác (vd. getRecentContacts) để khỏi đọc lại
+    public void seed(String owner, Collection<String> saved) {
+        synchronized (owners) {
+            owners.put(owner, new Node(new HashSet<>(saved), System.currentTimeMillis()));
+        }
+    }
+
+    public void removeContact(String owner, String partner) {
+        synchronized (owners) {
+            Node n = owners.get(owner);
+            if (n != null) n.partners().remove(partner);
+        }
+    }
+
+    private boolean hasContact(String owner, String partner) {
+        synchronized (owners) {
+            Node n = owners.get(owner);
+            if (n != null && System.currentTimeMillis() - n.loadedAt() < REFRESH_MS) {
+                return n.partners().contains(partner);
+            }
+        }
+        Collection<String> saved = userDAO.getSavedContacts(owner);
+        seed(owner, saved);
+        return saved.contains(partner);
+    }
+}
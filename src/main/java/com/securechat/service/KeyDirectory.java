@@ -0,0 +1,141 @@
+/* KeyDirectory.java */
+package com.securechat.service;
+
+import com.securechat.dao.UserDAO;
+import com.securechat.security.B64;
+import com.securechat.security.KeyProtector;
+import org.bson.Document;
+
+import java.security.PublicKey;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Danh bạ khóa công khai trong bộ nhớ (cache theo username).
+ * Giữ sẵn PublicKey đã decode (Ed25519 + X25519) để không phải query DB
+ * và tạo KeyFactory mới cho mỗi tin nhắn.
+ * - Giới hạn số entry (LRU).
+ * - Mỗi entry có "version" = chuỗi Base64 đang lưu trong DB; sau REFRESH_MS
+ *   sẽ đọc lại DB, nếu khóa đổi thì decode lại, không đổi thì giữ nguyên.
+ */
+public class KeyDirectory {
+
+    private static final int MAX_ENTRIES = 256;
+    private static final long REFRESH_MS = 5 * 60 * 1000; // 5 phút
+
+    public record UserKeys(String username, PublicKey signPub, PublicKey ecdhPub, String version) {}
+
+    private record Entry(UserKeys keys, long loadedAt) {}
+
+    private final UserDAO userDAO;
+
+    // accessOrder = true -> LRU
+    private final Map<String, Entry> cache = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public KeyDirectory(UserDAO userDAO) {
+        this.userDAO = userDAO;
+    }
+
+    /**
+     * @param username
+     * @return khóa công khai của user, hoặc null nếu user không tồn tại
+     */
+    public UserKeys lookup(String username) {
+        Entry e;
+        synchronized (cache) {
+            e = cache.get(username);
+        }
+        long now = System.currentTimeMillis();
+        if (e != null && now - e.loadedAt() < REFRESH_MS) {
+            return e.keys();
+        }
+
+        Document doc = userDAO.findPublicKeys(username);
+        if (doc == null) {
+            invalidate(username);
+            return null;
+        }
+        UserKeys keys = decode(username, doc, (e != null) ? e.keys() : null);
+        synchronized (cache) {
+            cache.put(username, new Entry(keys, now));
+        }
+        return keys;
+    }
+
+    /**
+     * Nạp trước khóa của nhiều user trong 1 query ($in), chỉ với các entry chưa có / đã cũ.
+     * Gọi trước khi xử lý một trang tin nhắn hoặc danh bạ để lookup() sau đó đều trúng cache.
+     * @param usernames
+     */
+    public void prefetch(Collection<String> usernames) {
+        long now = System.currentTimeMillis();
+        Map<String, UserKeys> previous = new HashMap<>();
+        Set<String> stale = new HashSet<>();
+        synchronized (cache) {
+            for (String u : usernames) {
+                Entry e = cache.get(u);
+                if (e == null || now - e.loadedAt() >= REFRESH_MS) {
+                    stale.add(u);
+                    if (e != null) previous.put(u, e.keys());
+                }
+            }
+        }
+        if (stale.isEmpty()) return;
+
+        List<Document> docs = userDAO.findByUsernames(stale, UserDAO.PUBLIC_KEY_FIELDS);
+        synchronized (cache) {
+            for (Document doc : docs) {
+                String u = doc.getString("username");
+                cache.put(u, new Entry(decode(u, doc, previous.get(u)), now));
+                stale.remove(u);
+            }
+            // Không còn trong DB -> bỏ khỏi cache
+            stale.forEach(cache::remove);
+        }
+    }
+
+    public PublicKey signPub(String username) {
+        UserKeys k = lookup(username);
+        return (k != null) ? k.signPub() : null;
+    }
+
+    public PublicKey ecdhPub(String username) {
+        UserKeys k = lookup(username);
+        return (k != null) ? k.ecdhPub() : null;
+    }
+
+    public void invalidate(String username) {
+        synchronized (cache) {
+            cache.remove(username);
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    // Chỉ decode lại khi chuỗi khóa trong DB khác với version đang cache
+    private static UserKeys decode(String username, Document doc, UserKeys previous) {
+        String signB64 = doc.getString("signPubB64");
+        String ecdhB64 = doc.getString("ecdhPubB64");
+        String version = signB64 + ":" + ecdhB64;
+        if (previous != null && previous.version().equals(version)) {
+            return previous;
+        }
+        PublicKey signPub = KeyProtector.decodeEd25519Public(B64.dec(signB64));
+        PublicKey ecdhPub = KeyProtector.decodeX25519Public(B64.dec(ecdhB64));
+        return new UserKeys(username, signPub, ecdhPub, version);
+    }
+}
@@ -0,0 +1,94 @@
+/* MessageCache.java */
+package com.securechat.service;
+
+import com.securechat.model.DecryptedMessage;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache LRU các tin đã giải mã, key = _id của message.
+ * Mỗi entry giữ thêm hash của ciphertext: nếu document bị thay đổi thì coi như miss.
+ * Giới hạn theo dung lượng ước tính (memory budget) chứ không theo số entry.
+ */
+public class MessageCache {
+
+    private static final long DEFAULT_BUDGET_BYTES = 8L * 1024 * 1024; // 8 MB
+    private static final int ENTRY_OVERHEAD = 160; // object header + các field + entry của map
+
+    public record Stats(long hits, long misses, int entries, long bytes, long budgetBytes) {}
+
+    private record Entry(DecryptedMessage msg, byte[] ctHash, String partner, int size) {}
+
+    private final long budgetBytes;
+    private long usedBytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(256, 0.75f, true);
+
+    public MessageCache() {
+        this(DEFAULT_BUDGET_BYTES);
+    }
+
+    public MessageCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    public synchronized DecryptedMessage get(String id, byte[] ctHash) {
+        Entry e = (id != null) ? map.get(id) : null;
+        if (e == null || !Arrays.equals(e.ctHash(), ctHash)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return e.msg();
+    }
+
+    public synchronized void put(String id, byte[] ctHash, String partner, DecryptedMessage msg) {
+        if (id == null) return;
+        Entry e = new Entry(msg, ctHash, partner, estimateSize(msg, ctHash));
+        Entry old = map.put(id, e);
+        if (old != null) usedBytes -= old.size();
+        usedBytes += e.size();
+
+        // Bỏ các entry cũ nhất cho tới khi về dưới budget
+        Iterator<Entry> it = map.values().iterator();
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            usedBytes -= it.next().size();
+            it.remove();
+        }
+    }
+
+    // Gọi khi xóa liên hệ / xóa hội thoại
+    public synchronized void invalidateConversation(String partner) {
+        Iterator<Entry> it = map.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.partner().equals(partner)) {
+                usedBytes -= e.size();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits.get(), misses.get(), map.size(), usedBytes, budgetBytes);
+    }
+
+    private static int estimateSize(DecryptedMessage m, byte[] ctHash) {
+        int chars = len(m.id) + len(m.from) + len(m.to) + len(m.plaintext);
+        return ENTRY_OVERHEAD + chars * 2 + ctHash.length;
+    }
+
+    private static int len(String s) {
+        return (s != null) ? s.length() : 0;
+    }
+}
@@ -6,6 +6,7 @@ import com.securechat.security.AesGcm;
 import com.securechat.security.B64;
 import com.securechat.security.Rand;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class ProfileSecurity {
     
@@ -24,6 +25,27 @@ public class ProfileSecurity {
         return B64.enc(iv) + SEPARATOR + B64.enc(ct);
     }
 
+    // Dạng nhị phân cho dữ liệu lớn (thumbnail avatar): [iv(12)][ciphertext], không qua Base64
+    public byte[] encryptBytes(byte[] plaintext) {
+        byte[] iv = Rand.bytes(12);
+        byte[] ct = AesGcm.encrypt(AppConfig.getProfileKey(), iv, plaintext, null);
+        byte[] out = new byte[iv.length + ct.length];
+        System.arraycopy(iv, 0, out, 0, iv.length);
+        System.arraycopy(ct, 0, out, iv.length, ct.length);
+        return out;
+    }
+
+    public byte[] decryptBytes(byte[] encrypted) {
+        if (encrypted == null || encrypted.length <= 12) return null;
+        try {
+            byte[] iv = Arrays.copyOfRange(encrypted, 0, 12);
+            byte[] ct = Arrays.copyOfRange(encrypted, 12, encrypted.length);
+            return AesGcm.decrypt(AppConfig.getProfileKey(), iv, ct, null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     public String decrypt(String encryptedPackage) {
         if (encryptedPackage == null || encryptedPackage.isEmpty()) return "";
         if (!encryptedPackage.contains(SEPARATOR)) return "(Error: Invalid Format)";
@@ -0,0 +1,274 @@
+/* SessionKeys.java */
+package com.securechat.service;
+
+import com.securechat.dao.MessageDAO;
+import com.securechat.dao.SessionEpochDAO;
+import com.securechat.security.Canonical;
+import com.securechat.security.HKDF;
+import com.securechat.security.Rand;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Chế độ session key (tùy chọn, AppConfig.SESSION_KEYS).
+ * - Mỗi chiều gửi (from -> to) có 1 epoch: root key ngẫu nhiên, wrap 1 lần cho người nhận và người gửi
+ *   (2 phép X25519), lưu trong session_epochs cùng batch với tin đầu tiên của epoch.
+ * - Khóa của tin thứ idx = HKDF(root key, salt = epochId, info = nhãn || idx): chỉ tốn HMAC, không X25519.
+ *   Dẫn xuất theo idx thay vì bước chain tuần tự -> giải mã được từng trang / song song, không thứ tự.
+ * - Epoch đổi sau maxMessages tin hoặc maxAgeMs; mỗi máy tự mở epoch riêng nên idx không bao giờ trùng.
+ * - Root key đã unwrap được cache theo (user, epoch): giải mã 1000 tin chỉ tốn vài phép X25519.
+ * - Tin có TTL dùng epoch riêng theo ttl, epoch đó có expireAt = hạn của tin cuối cùng có thể thuộc nó.
+ */
+public class SessionKeys {
+
+    private static final int MAX_ROOT_KEYS = 1024;
+    // Epoch có nhưng không unwrap được: báo lỗi ngay trong khoảng này thay vì query lại cho từng tin
+    private static final long FAILED_RETRY_MS = 30 * 1000;
+    // Epoch chưa tìm thấy: epoch và tin đầu tiên nằm trong 1 bulkWrite unordered, change stream có thể
+    // báo tin trước khi document epoch được ghi -> chờ chút rồi nạp lại 1 lần; vẫn không có mới nhớ lỗi (ngắn)
+    private static final long MISSING_RECHECK_MS = 250;
+    private static final long MISSING_RETRY_MS = 2000;
+    private static final byte[] MSG_KEY_LABEL = "SecureChat session msg key".getBytes(StandardCharsets.UTF_8);
+
+    // Epoch đang dùng để gửi; "saved" = document epoch đã ghi xong vào DB
+    private static final class SendEpoch {
+        final ObjectId id;
+        final byte[] rootKey;
+        final long createdAt;
+        final Document doc;
+        int next;
+        volatile boolean saved;
+
+        SendEpoch(ObjectId id, byte[] rootKey, long createdAt, Document doc) {
+            this.id = id;
+            this.rootKey = rootKey;
+            this.createdAt = createdAt;
+            this.doc = doc;
+        }
+    }
+
+    /**
+     * Khóa cho 1 tin sắp gửi.
+     * @param epochDoc document epoch cần ghi kèm trong batch, null nếu epoch đã có trong DB
+     */
+    public record Step(ObjectId epochId, int idx, byte[] messageKey, Document epochDoc) {}
+
+    private final SessionEpochDAO epochDAO;
+    private final int maxMessages;
+    private final long maxAgeMs;
+
+    private final Map<String, SendEpoch> sending = new HashMap<>();
+    // cacheKey -> thời điểm được thử nạp lại (cùng lock với rootKeys)
+    private final Map<String, Long> failed = new HashMap<>();
+
+    // accessOrder = true -> LRU
+    private final Map<String, byte[]> rootKeys = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_ROOT_KEYS;
+        }
+    };
+
+    public SessionKeys(SessionEpochDAO epochDAO, int maxMessages, long maxAgeSeconds) {
+        this.epochDAO = epochDAO;
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxAgeMs = maxAgeSeconds * 1000;
+    }
+
+    public Step next(String from, String to, long ttlSeconds, PublicKey receiverPub, PublicKey senderPub) {
+        String k = from + "|" + to + "|" + ttlSeconds;
+        long now = System.currentTimeMillis();
+        synchronized (sending) {
+            // Epoch hết hạn / đủ số tin không bao giờ được dùng lại -> bỏ khỏi map
+            sending.values().removeIf(e -> !usable(e, now));
+            SendEpoch e = sending.get(k);
+            if (e != null) {
+                return step(e, e.next++);
+            }
+        }
+        // Mở epoch mới ngoài lock (2 phép X25519); gửi đồng thời thì epoch tạo sau thắng, không sao
+        SendEpoch fresh = openEpoch(from, to, ttlSeconds, receiverPub, senderPub, now);
+        synchronized (rootKeys) {
+            rootKeys.put(cacheKey(from, fresh.id), fresh.rootKey); // đọc lại tin của chính mình không cần unwrap
+        }
+        synchronized (sending) {
+            sending.put(k, fresh);
+            return step(fresh, fresh.next++);
+        }
+    }
+
+    // Gọi sau khi batch chứa step.epochDoc() ghi thành công
+    public void confirmSaved(Step step) {
+        if (step.epochDoc() == null) return;
+        synchronized (sending) {
+            for (SendEpoch e : sending.values()) {
+                if (e.id.equals(step.epochId())) e.saved = true;
+            }
+        }
+    }
+
+    public byte[] rootKey(AuthService.Session session, ObjectId epochId) {
+        byte[] rk = lookup(session, epochId, true);
+        if (rk == null) {
+            prefetch(session, List.of(epochId));
+            rk = lookup(session, epochId, true);
+        }
+        if (rk == null) {
+            // Chưa có trong DB (không phải unwrap lỗi): có thể document epoch đang được ghi
+            try {
+                Thread.sleep(MISSING_RECHECK_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            prefetch(session, List.of(epochId));
+            rk = lookup(session, epochId, false);
+        }
+        if (rk == null) {
+            String key = cacheKey(session.username(), epochId);
+            synchronized (rootKeys) {
+                failed.put(key, System.currentTimeMillis() + MISSING_RETRY_MS);
+            }
+            throw new IllegalArgumentException("Session epoch unavailable: " + epochId);
+        }
+        return rk;
+    }
+
+    /**
+     * Nạp trước root key của mọi epoch trong trang: 1 query $in, mỗi epoch 1 phép X25519.
+     * Epoch không unwrap được được ghi nhớ FAILED_RETRY_MS -> rootKey() báo lỗi ngay,
+     * các tin còn lại của epoch đó không query lại. Epoch chưa có trong DB / lỗi DB không ghi nhớ ở đây
+     * (xem rootKey).
+     */
+    public void prefetch(AuthService.Session session, Collection<ObjectId> epochIds) {
+        Set<ObjectId> todo = new HashSet<>();
+        synchronized (rootKeys) {
+            for (ObjectId id : epochIds) {
+                String key = cacheKey(session.username(), id);
+                if (!rootKeys.containsKey(key) && !recentlyFailed(key)) todo.add(id);
+            }
+        }
+        if (todo.isEmpty()) return;
+        Map<String, byte[]> loaded = new HashMap<>();
+        Set<String> bad = new HashSet<>();
+        try {
+            for (Document d : epochDAO.findByIds(todo)) {
+                String key = cacheKey(session.username(), d.getObjectId("_id"));
+                try {
+                    byte[] aad = Canonical.aad(d.getString("from"), d.getString("to"), d.getLong(SessionEpochDAO.FIELD_CREATED_AT));
+                    loaded.put(key, ChatService.unwrapContentKey(session, d, aad));
+                } catch (RuntimeException ex) {
+                    // Epoch hỏng / không có khóa cho mình -> các tin của epoch này báo lỗi giải mã
+                    bad.add(key);
+                }
+            }
+        } catch (RuntimeException ex) {
+            // Lỗi DB: trang này báo lỗi giải mã, lần tải sau thử lại
+        }
+        long now = System.currentTimeMillis();
+        synchronized (rootKeys) {
+            if (failed.size() > MAX_ROOT_KEYS) {
+                failed.values().removeIf(retryAt -> now >= retryAt);
+            }
+            rootKeys.putAll(loaded);
+            failed.keySet().removeAll(loaded.keySet());
+            for (String key : bad) {
+                failed.put(key, now + FAILED_RETRY_MS);
+            }
+        }
+    }
+
+    public static byte[] messageKey(byte[] rootKey, ObjectId epochId, int idx) {
+        byte[] key = new byte[32];
+        messageKey(rootKey, epochId, idx, key);
+        return key;
+    }
+
+    // Ghi khóa 32 byte vào out của caller (giải mã hàng loạt dùng lại 1 mảng)
+    public static void messageKey(byte[] rootKey, ObjectId epochId, int idx, byte[] out) {
+        byte[] info = ByteBuffer.allocate(MSG_KEY_LABEL.length + 4).put(MSG_KEY_LABEL).putInt(idx).array();
+        HKDF.derive(rootKey, epochId.toByteArray(), info, out, 0, 32);
+    }
+
+    // Đăng xuất: bỏ mọi root key khỏi bộ nhớ
+    public void clear() {
+        synchronized (sending) {
+            for (SendEpoch e : sending.values()) {
+                Arrays.fill(e.rootKey, (byte) 0);
+            }
+            sending.clear();
+        }
+        synchronized (rootKeys) {
+            for (byte[] rk : rootKeys.values()) {
+                Arrays.fill(rk, (byte) 0);
+            }
+            rootKeys.clear();
+            failed.clear();
+        }
+    }
+
+    private boolean usable(SendEpoch e, long now) {
+        return e.next < maxMessages && now - e.createdAt < maxAgeMs;
+    }
+
+    private Step step(SendEpoch e, int idx) {
+        return new Step(e.id, idx, messageKey(e.rootKey, e.id, idx), e.saved ? null : e.doc);
+    }
+
+    private SendEpoch openEpoch(String from, String to, long ttlSeconds, PublicKey receiverPub, PublicKey senderPub, long now) {
+        ObjectId id = new ObjectId();
+        byte[] rootKey = Rand.bytes(32);
+        byte[] aad = Canonical.aad(from, to, now);
+        List<Document> keys = new ArrayList<>();
+        keys.add(ChatService.wrapContentKey(to, receiverPub, rootKey, aad));
+        if (!from.equals(to)) {
+            keys.add(ChatService.wrapContentKey(from, senderPub, rootKey, aad));
+        }
+        Document doc = new Document("_id", id)
+                .append("from", from)
+                .append("to", to)
+                .append(SessionEpochDAO.FIELD_CREATED_AT, now)
+                .append(MessageDAO.FIELD_KEYS, keys);
+        if (ttlSeconds > 0) {
+            // Tin cuối của epoch gửi trước now + maxAgeMs, hết hạn sau đó tối đa ttl
+            doc.append("expireAt", new Date(now + maxAgeMs + ttlSeconds * 1000));
+        }
+        return new SendEpoch(id, rootKey, now, doc);
+    }
+
+    // null nếu chưa có; failFast = epoch vừa lỗi thì ném luôn, không nạp lại
+    private byte[] lookup(AuthService.Session session, ObjectId epochId, boolean failFast) {
+        String key = cacheKey(session.username(), epochId);
+        synchronized (rootKeys) {
+            byte[] rk = rootKeys.get(key);
+            if (rk == null && failFast && recentlyFailed(key)) {
+                throw new IllegalArgumentException("Session epoch unavailable: " + epochId);
+            }
+            return rk;
+        }
+    }
+
+    // Gọi khi đang giữ lock rootKeys
+    private boolean recentlyFailed(String key) {
+        Long retryAt = failed.get(key);
+        return retryAt != null && System.currentTimeMillis() < retryAt;
+    }
+
+    // Theo cả user: cùng ChatService mà đăng nhập tài khoản khác thì không dùng lại khóa
+    private static String cacheKey(String username, ObjectId epochId) {
+        return username + "@" + epochId.toHexString();
+    }
+}
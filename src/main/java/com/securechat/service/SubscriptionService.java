@@ -0,0 +1,240 @@
+/* SubscriptionService.java */
+package com.securechat.service;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoServerException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.securechat.dao.MessageDAO;
+import com.securechat.dao.UserDAO;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Đẩy sự kiện (tin mới, đổi sessionId) tới client thay cho Timer polling.
+ * - Mặc định dùng MongoDB change stream (cần replica set): idle thì gần như không có query nào.
+ * - Nếu server không hỗ trợ change stream (UNSUPPORTED_CODES) -> tự chuyển sang polling thích ứng:
+ *   có hoạt động thì poll nhanh, rảnh thì giãn dần khoảng cách.
+ *   lỗi khác (mạng, failover...) chỉ mở lại stream với backoff.
+ * - Token không resume được (oplog đã trôi qua) -> bỏ token, bù tin bị lỡ bằng 1 query rồi mở stream mới.
+ * Listener được gọi trên thread nền, UI phải tự chuyển sang EDT.
+ */
+public class SubscriptionService {
+
+    public interface Listener {
+        /**
+         * @param from người gửi
+         * @param partner người còn lại trong hội thoại (khác from nếu chính mình gửi từ thiết bị khác)
+         * @param ts
+         */
+        void onNewMessage(String from, String partner, long ts);
+
+        void onSessionChanged(String sessionId);
+    }
+
+    private static final long MAX_AWAIT_MS = 1000;
+    private static final long POLL_MIN_MS = 1000;
+    private static final long POLL_MAX_MS = 10_000;
+    private static final long RETRY_MS = 2000;
+    private static final long RETRY_MAX_MS = 30_000;
+    // Server không hỗ trợ change stream: 40573 = standalone (không phải replica set),
+    // 40324 = không biết stage $changeStream (server quá cũ)
+    private static final Set<Integer> UNSUPPORTED_CODES = Set.of(40573, 40324);
+    // resumeToken không dùng được nữa: 286 = ChangeStreamHistoryLost (oplog đã trôi qua token),
+    // 280 = ChangeStreamFatalError
+    private static final Set<Integer> NON_RESUMABLE_CODES = Set.of(286, 280);
+    private static final String RESUMABLE_LABEL = "ResumableChangeStreamError";
+    private static final int POLL_LIMIT = 100;
+
+    private final MessageDAO messageDAO = new MessageDAO();
+    private final UserDAO userDAO = new UserDAO();
+    private final String username;
+    private final Listener listener;
+    private volatile boolean running = false;
+    private volatile boolean polling = false;
+    private Thread inboxThread;
+    private Thread sessionThread;
+
+    public SubscriptionService(String username, Listener listener) {
+        this.username = username;
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        inboxThread = Thread.ofVirtual().name("push-inbox-" + username).start(this::runInbox);
+        sessionThread = Thread.ofVirtual().name("push-session-" + username).start(this::runSession);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (inboxThread != null) inboxThread.interrupt();
+        if (sessionThread != null) sessionThread.interrupt();
+    }
+
+    // true nếu đang chạy polling dự phòng
+    public boolean isPolling() {
+        return polling;
+    }
+
+    // --- Change stream: tin nhắn ---
+    private void runInbox() {
+        BsonDocument resumeToken = null;
+        long lastTs = System.currentTimeMillis(); // ts của tin cuối đã báo, dùng khi phải bù tin
+        long retryMs = RETRY_MS;
+        while (running) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cur = messageDAO.watchInbox(username, resumeToken)
+                    .maxAwaitTime(MAX_AWAIT_MS, TimeUnit.MILLISECONDS)
+                    .cursor()) {
+                retryMs = RETRY_MS; // mở được stream -> reset backoff
+                while (running) {
+                    ChangeStreamDocument<Document> ev = cur.tryNext();
+                    if (cur.getResumeToken() != null) {
+                        resumeToken = cur.getResumeToken();
+                    }
+                    if (ev != null && ev.getFullDocument() != null) {
+                        lastTs = Math.max(lastTs, dispatchMessage(ev.getFullDocument()));
+                    }
+                }
+            } catch (MongoException e) {
+                if (isUnsupported(e)) {
+                    // Server không có change stream (standalone...) -> polling cho tới hết phiên
+                    runPolling();
+                    return;
+                }
+                if (resumeToken != null && isNonResumable(e)) {
+                    // Mở lại từ token cũ sẽ lỗi mãi -> stream mới từ bây giờ, tin bị lỡ lấy bằng query
+                    resumeToken = null;
+                    try {
+                        for (Document d : messageDAO.findInboxSince(username, lastTs, POLL_LIMIT)) {
+                            lastTs = Math.max(lastTs, dispatchMessage(d));
+                        }
+                        continue;
+                    } catch (MongoException ce) {
+                        // Chưa bù được: lần lặp sau mở stream mới, tin lỡ sẽ được tải khi mở hội thoại
+                    }
+                }
+                // Lỗi tạm thời (mạng, bầu primary...) -> mở lại từ resumeToken, giãn dần khoảng chờ
+                if (!sleepQuietly(retryMs)) return;
+                retryMs = Math.min(RETRY_MAX_MS, retryMs * 2);
+            }
+        }
+    }
+
+    // --- Change stream: sessionId (đăng nhập ở nơi khác) ---
+    private void runSession() {
+        Object userId;
+        try {
+            userId = userDAO.findUserId(username);
+        } catch (MongoException e) {
+            return;
+        }
+        if (userId == null) return;
+
+        BsonDocument resumeToken = null;
+        long retryMs = RETRY_MS;
+        while (running && !polling) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cur = userDAO.watchSession(userId, resumeToken)
+                    .maxAwaitTime(MAX_AWAIT_MS, TimeUnit.MILLISECONDS)
+                    .cursor()) {
+                retryMs = RETRY_MS;
+                while (running) {
+                    ChangeStreamDocument<Document> ev = cur.tryNext();
+                    if (cur.getResumeToken() != null) {
+                        resumeToken = cur.getResumeToken();
+                    }
+                    if (ev != null && ev.getUpdateDescription() != null) {
+                        BsonValue sid = ev.getUpdateDescription().getUpdatedFields().get("sessionId");
+                        listener.onSessionChanged((sid != null && sid.isString()) ? sid.asString().getValue() : null);
+                    }
+                }
+            } catch (MongoException e) {
+                // Không hỗ trợ: polling dự phòng (do runInbox bật) lo luôn phần sessionId
+                if (isUnsupported(e)) return;
+                if (resumeToken != null && isNonResumable(e)) {
+                    resumeToken = null;
+                    try {
+                        // Bù thay đổi bị lỡ: listener tự so với sessionId của mình
+                        listener.onSessionChanged(userDAO.getSessionId(username));
+                        continue;
+                    } catch (MongoException ce) {
+                        // Lần lặp sau thử lại với stream mới
+                    }
+                }
+                if (!sleepQuietly(retryMs)) return;
+                retryMs = Math.min(RETRY_MAX_MS, retryMs * 2);
+            }
+        }
+    }
+
+    // --- Polling thích ứng (dự phòng) ---
+    private void runPolling() {
+        polling = true;
+        long lastTs = System.currentTimeMillis();
+        String lastSessionId = null;
+        boolean firstPoll = true;
+        long interval = POLL_MIN_MS;
+        while (running) {
+            boolean activity = false;
+            try {
+                List<Document> docs = messageDAO.findInboxSince(username, lastTs, POLL_LIMIT);
+                for (Document d : docs) {
+                    dispatchMessage(d);
+                    lastTs = Math.max(lastTs, d.getLong("ts"));
+                    activity = true;
+                }
+                // Lần đầu cũng báo để listener tự so với sessionId của mình
+                String sid = userDAO.getSessionId(username);
+                if (firstPoll || !Objects.equals(lastSessionId, sid)) {
+                    listener.onSessionChanged(sid);
+                    if (!firstPoll) activity = true;
+                }
+                lastSessionId = sid;
+                firstPoll = false;
+            } catch (MongoException e) {
+                activity = false;
+            }
+            interval = activity ? POLL_MIN_MS : Math.min(POLL_MAX_MS, interval * 2);
+            if (!sleepQuietly(interval)) return;
+        }
+    }
+
+    private static boolean isUnsupported(MongoException e) {
+        return UNSUPPORTED_CODES.contains(e.getCode());
+    }
+
+    // Lỗi phía server không mang nhãn resumable -> token hỏng. Lỗi mạng / timeout phía client
+    // (không phải MongoServerException) vẫn resume được nên giữ token.
+    private static boolean isNonResumable(MongoException e) {
+        if (NON_RESUMABLE_CODES.contains(e.getCode())) return true;
+        return e instanceof MongoServerException && !e.hasErrorLabel(RESUMABLE_LABEL);
+    }
+
+    // Trả về ts của tin (0 nếu không có)
+    private long dispatchMessage(Document d) {
+        String from = d.getString("from");
+        String originalTo = d.getString("originalTo");
+        String partner = (username.equals(from) && originalTo != null) ? originalTo : from;
+        Long ts = d.getLong("ts");
+        long t = (ts != null) ? ts : 0L;
+        listener.onNewMessage(from, partner, t);
+        return t;
+    }
+
+    private boolean sleepQuietly(long ms) {
+        try {
+            Thread.sleep(ms);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
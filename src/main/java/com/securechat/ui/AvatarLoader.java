@@ -0,0 +1,167 @@
+package com.securechat.ui;
+
+import com.securechat.service.AuthService;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Cache avatar phía client, chỉ dùng trên EDT.
+ * - Gộp request: cùng (user, size) đang tải thì các lần gọi sau chỉ đăng ký callback,
+ *   không mở thêm query (renderer gọi get() mỗi lần repaint). Callback lưu theo Set: renderer truyền
+ *   cùng 1 Runnable thì mỗi avatar đang tải chỉ giữ 1 callback dù bị repaint bao nhiêu lần.
+ * - Tải thumbnail đúng kích thước (35/40/80) thay cho ảnh gốc.
+ * - Sau REVALIDATE_MS chỉ hỏi lại avatarVersion (vài byte); version không đổi thì giữ ảnh cũ.
+ */
+public class AvatarLoader {
+
+    // Các kích thước thumbnail được tạo lúc upload (xem ProfileDialog.onUploadAvatar)
+    public static final int[] THUMB_SIZES = {35, 40, 80};
+    private static final long REVALIDATE_MS = 5 * 60 * 1000;
+
+    private record Entry(Icon icon, long version, long checkedAt) {}
+
+    private final AuthService authService;
+    private final Map<String, Entry> cache = new HashMap<>();
+    private final Map<String, Set<Runnable>> inFlight = new HashMap<>();
+    private final Map<Integer, Icon> placeholders = new HashMap<>();
+
+    public AvatarLoader(AuthService authService) {
+        this.authService = authService;
+    }
+
+    /**
+     * Trả icon đã có (hoặc ảnh mặc định) ngay lập tức; nếu cần tải thì onLoaded được gọi
+     * trên EDT khi có ảnh mới.
+     */
+    public Icon get(String username, int size, Runnable onLoaded) {
+        String key = username + "@" + size;
+        Entry e = cache.get(key);
+        if (e == null) {
+            load(key, username, size, null, onLoaded);
+            return placeholder(size);
+        }
+        if (System.currentTimeMillis() - e.checkedAt() > REVALIDATE_MS) {
+            load(key, username, size, e, onLoaded);
+        }
+        return e.icon();
+    }
+
+    /**
+     * Tải trước avatar của cả danh sách trong 1 query (vd. danh bạ), bỏ qua user đã có / đang tải.
+     * onLoaded chạy trên EDT một lần khi xong.
+     */
+    public void prefetch(Collection<String> usernames, int size, Runnable onLoaded) {
+        List<String> todo = new ArrayList<>();
+        for (String u : usernames) {
+            String key = u + "@" + size;
+            if (!cache.containsKey(key) && !inFlight.containsKey(key)) {
+                todo.add(u);
+                inFlight.put(key, new LinkedHashSet<>());
+            }
+        }
+        if (todo.isEmpty()) return;
+
+        new SwingWorker<Map<String, AuthService.Avatar>, Void>() {
+            @Override
+            protected Map<String, AuthService.Avatar> doInBackground() {
+                return authService.getAvatarThumbs(todo, thumbSize(size));
+            }
+
+            @Override
+            protected void done() {
+                Map<String, AuthService.Avatar> result;
+                try {
+                    result = get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    result = Map.of();
+                }
+                long now = System.currentTimeMillis();
+                Set<Runnable> callbacks = new LinkedHashSet<>();
+                for (String u : todo) {
+                    String key = u + "@" + size;
+                    Set<Runnable> waiters = inFlight.remove(key);
+                    if (waiters != null) callbacks.addAll(waiters);
+                    AuthService.Avatar a = result.get(u);
+                    // Lỗi / user không tồn tại -> ảnh mặc định, version -1 để lần sau kiểm tra lại
+                    Entry e = (a != null)
+                            ? new Entry(ImageUtils.createCircularAvatar(a.bytes(), size), a.version(), now)
+                            : new Entry(placeholder(size), -1L, now);
+                    cache.put(key, e);
+                }
+                if (onLoaded != null) callbacks.add(onLoaded);
+                for (Runnable r : callbacks) {
+                    r.run();
+                }
+            }
+        }.execute();
+    }
+
+    // Bỏ cache của một user (vd. vừa đổi avatar của chính mình)
+    public void invalidate(String username) {
+        cache.keySet().removeIf(k -> k.startsWith(username + "@"));
+    }
+
+    private Icon placeholder(int size) {
+        return placeholders.computeIfAbsent(size, s -> ImageUtils.createCircularAvatar(null, s));
+    }
+
+    // known = entry hiện có (null nếu chưa từng tải)
+    private void load(String key, String username, int size, Entry known, Runnable onLoaded) {
+        Set<Runnable> waiters = inFlight.get(key);
+        if (waiters != null) {
+            if (onLoaded != null) waiters.add(onLoaded);
+            return;
+        }
+        waiters = new LinkedHashSet<>();
+        if (onLoaded != null) waiters.add(onLoaded);
+        inFlight.put(key, waiters);
+
+        new SwingWorker<Entry, Void>() {
+            @Override
+            protected Entry doInBackground() {
+                long now = System.currentTimeMillis();
+                if (known != null && authService.getAvatarVersion(username) == known.version()) {
+                    return new Entry(known.icon(), known.version(), now); // không đổi -> không tải ảnh
+                }
+                AuthService.Avatar a = authService.getAvatarThumb(username, thumbSize(size));
+                return new Entry(ImageUtils.createCircularAvatar(a.bytes(), size), a.version(), now);
+            }
+
+            @Override
+            protected void done() {
+                Set<Runnable> callbacks = inFlight.remove(key);
+                try {
+                    Entry fresh = get();
+                    cache.put(key, fresh);
+                    if (known != null && known.icon() == fresh.icon()) {
+                        return; // chỉ gia hạn, UI không cần vẽ lại
+                    }
+                } catch (InterruptedException | ExecutionException ex) {
+                    // Lỗi mạng: giữ ảnh hiện có, version -1 để lần kiểm tra sau chắc chắn tải lại
+                    Icon icon = (known != null) ? known.icon() : placeholder(size);
+                    cache.put(key, new Entry(icon, -1L, System.currentTimeMillis()));
+                    return;
+                }
+                for (Runnable r : callbacks) {
+                    r.run();
+                }
+            }
+        }.execute();
+    }
+
+    // Thumbnail nhỏ nhất không bé hơn size cần hiển thị
+    static int thumbSize(int size) {
+        for (int s : THUMB_SIZES) {
+            if (s >= size) return s;
+        }
+        return THUMB_SIZES[THUMB_SIZES.length - 1];
+    }
+}
@@ -0,0 +1,126 @@
+package com.securechat.ui;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineBreakMeasurer;
+import java.awt.font.TextAttribute;
+import java.awt.font.TextLayout;
+import java.text.AttributedString;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vẽ nội dung tin nhắn trong bubble bằng LineBreakMeasurer/TextLayout thay cho JLabel HTML.
+ * - Text được vẽ nguyên văn, không bị hiểu thành markup.
+ * - Kết quả xuống dòng được cache theo (id tin, độ rộng) nên repaint / cuộn / resize
+ *   không phải đo lại.
+ * Chỉ dùng trên EDT.
+ */
+public class BubbleTextView extends JComponent {
+
+    private static final int MAX_CACHED_LAYOUTS = 2000;
+    // Đo và vẽ cùng một kiểu render (antialias + fractional metrics) để kích thước khớp nhau
+    private static final FontRenderContext FRC = new FontRenderContext(null, true, true);
+
+    // Có cả text: cùng id có thể đổi nội dung (vd. "(DECRYPT ERROR)" rồi giải mã lại được)
+    private record Key(String id, String text, int width) {}
+
+    private record Layout(TextLayout[] lines, float[] baselines, int width, int height) {}
+
+    private final Map<Key, Layout> cache = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Layout> eldest) {
+            return size() > MAX_CACHED_LAYOUTS;
+        }
+    };
+
+    private Layout layout = new Layout(new TextLayout[0], new float[0], 0, 0);
+
+    public BubbleTextView(Font font) {
+        setFont(font);
+        setForeground(UIManager.getColor("Label.foreground"));
+        setOpaque(false);
+        setAlignmentX(Component.LEFT_ALIGNMENT);
+    }
+
+    /**
+     * @param id khóa cache (id tin nhắn), null = không cache
+     * @param text nội dung thô
+     * @param wrapWidth độ rộng tối đa trước khi xuống dòng (px)
+     */
+    public void setText(String id, String text, int wrapWidth) {
+        if (id == null) {
+            layout = measure(text, wrapWidth);
+            return;
+        }
+        Key key = new Key(id, text, wrapWidth);
+        Layout cached = cache.get(key);
+        if (cached == null) {
+            cached = measure(text, wrapWidth);
+            cache.put(key, cached);
+        }
+        layout = cached;
+    }
+
+    private Layout measure(String text, int wrapWidth) {
+        Font font = getFont();
+        List<TextLayout> lines = new ArrayList<>();
+        List<Float> baselines = new ArrayList<>();
+        float y = 0;
+        float maxWidth = 0;
+
+        // LineBreakMeasurer không tự xuống dòng ở '\n' -> đo từng đoạn
+        for (String para : text.split("\n", -1)) {
+            if (para.isEmpty()) {
+                para = " ";
+            }
+            AttributedString as = new AttributedString(para);
+            as.addAttribute(TextAttribute.FONT, font);
+            LineBreakMeasurer measurer = new LineBreakMeasurer(as.getIterator(), FRC);
+            while (measurer.getPosition() < para.length()) {
+                TextLayout line = measurer.nextLayout(wrapWidth);
+                y += line.getAscent();
+                lines.add(line);
+                baselines.add(y);
+                y += line.getDescent() + line.getLeading();
+                maxWidth = Math.max(maxWidth, line.getVisibleAdvance());
+            }
+        }
+
+        float[] b = new float[baselines.size()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = baselines.get(i);
+        }
+        return new Layout(lines.toArray(new TextLayout[0]), b, (int) Math.ceil(maxWidth), (int) Math.ceil(y));
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        Insets in = getInsets();
+        return new Dimension(layout.width() + in.left + in.right, layout.height() + in.top + in.bottom);
+    }
+
+    @Override
+    public Dimension getMaximumSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+            g2.setColor(getForeground());
+            Insets in = getInsets();
+            for (int i = 0; i < layout.lines().length; i++) {
+                layout.lines()[i].draw(g2, in.left, in.top + layout.baselines()[i]);
+            }
+        } finally {
+            g2.dispose();
+        }
+    }
+}
@@ -3,17 +3,18 @@ package com.securechat.ui;
 import com.securechat.model.DecryptedMessage;
 import com.securechat.service.AuthService;
 import com.securechat.service.ChatService;
+import com.securechat.service.SubscriptionService;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
@@ -26,24 +27,45 @@ public class ChatForm extends JFrame {
     private final ChatService chatService = new ChatService();
     private final AuthService authService = new AuthService();
 
-    private Timer heartbeatTimer;
-    private Timer pollingTimer;
-    private long lastCheckTime;
+    // Nhận tin mới / đổi session qua change stream (tự fallback sang polling)
+    private SubscriptionService subscription;
     private String currentPartner = null;
     private final Set<String> unreadSenders = new HashSet<>();
+    // Các tin đang hiển thị của hội thoại hiện tại (tin cuối cùng = cursor để đồng bộ delta)
+    private final MessageListModel messageModel = new MessageListModel();
+    private boolean syncInFlight = false;
 
-    private final Map<String, Icon> avatarCache = new HashMap<>();
+    // Phân trang lịch sử: cuộn lên đầu -> tải trang cũ hơn, giữ tối đa MAX_LOADED_MESSAGES tin trong bộ nhớ
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_LOADED_MESSAGES = 500;
+    private boolean loadingOlder = false;
+    private boolean hasOlder = false;
+    private boolean hasNewerUnloaded = false; // đã bỏ bớt tin mới nhất khỏi bộ nhớ
+    private boolean autoScrolling = false;
+
+    private final AvatarLoader avatarLoader = new AvatarLoader(authService);
+
+    // Độ rộng tối đa của text trong bubble, hẹp lại khi cửa sổ quá nhỏ
+    private static final int MAX_TEXT_WIDTH = 250;
+    private static final int MIN_TEXT_WIDTH = 80;
+    private int textWrapWidth = MAX_TEXT_WIDTH;
+
+    private static final long MAX_FILE_BYTES = 1024L * 1024 * 1024;
 
     // UI Components
     private final DefaultListModel<ContactItem> contactListModel = new DefaultListModel<>();
     private final JList<ContactItem> contactList = new JList<>(contactListModel);
-    private final JPanel chatAreaPanel = new JPanel();
-    private final JScrollPane chatScrollPane = new JScrollPane(chatAreaPanel);
+    // JList ảo hóa: chỉ vẽ các dòng đang nhìn thấy, tin mới thêm qua event của model
+    private final JList<DecryptedMessage> chatList = new JList<>(messageModel);
+    // Nhớ chiều cao từng dòng theo (id, độ rộng) -> thêm tin không phải đo lại cả danh sách
+    private final MessageListUI chatListUI = new MessageListUI(() -> textWrapWidth);
+    private final JScrollPane chatScrollPane = new JScrollPane(chatList);
     private final JTextField txtMsg = new JTextField();
 
     private final JButton btnSend = new JButton("Gửi");
     private final JButton btnAttach = new JButton("📎");
 
+    private final JLabel lblMyAvatar = new JLabel();
     private final JLabel lblCurrentPartner = new JLabel("Chọn một người để bắt đầu chat");
     private final JTextField txtNewContact = new JTextField();
     private final JComboBox<TTLItem> cboTTL = new JComboBox<>();
@@ -99,7 +121,6 @@ public class ChatForm extends JFrame {
         myInfoPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
         myInfoPanel.setBackground(new Color(230, 240, 255));
 
-        JLabel lblMyAvatar = new JLabel();
         loadAvatarToLabel(session.username(), lblMyAvatar, 50);
 
         JPanel myTextPanel = new JPanel(new GridLayout(2, 1));
@@ -139,8 +160,23 @@ public class ChatForm extends JFrame {
         headerPanel.add(lblCurrentPartner);
         rightPanel.add(headerPanel, BorderLayout.NORTH);
 
-        chatAreaPanel.setLayout(new BoxLayout(chatAreaPanel, BoxLayout.Y_AXIS));
-        chatAreaPanel.setBackground(new Color(245, 245, 245));
+        chatList.setUI(chatListUI);
+        chatList.setCellRenderer(new MessageRenderer());
+        chatList.setBackground(new Color(245, 245, 245));
+        chatList.setSelectionModel(new NoSelectionModel());
+        chatList.setFocusable(false);
+        chatList.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                int w = Math.max(MIN_TEXT_WIDTH, Math.min(MAX_TEXT_WIDTH, chatList.getWidth() - 120));
+                if (w != textWrapWidth) {
+                    textWrapWidth = w;
+                    chatListUI.relayout(); // layout theo độ rộng mới (cũ vẫn nằm trong cache)
+                }
+            }
+        });
+        chatScrollPane.getVerticalScrollBar().setUnitIncrement(16);
+        chatScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> onChatScrolled());
         rightPanel.add(chatScrollPane, BorderLayout.CENTER);
 
         // Footer (Input)
@@ -195,7 +231,7 @@ public class ChatForm extends JFrame {
         JMenu menuAccount = new JMenu("Tài khoản");
         JMenuItem itemProfile = new JMenuItem("Hồ sơ & Đổi mật khẩu");
         JMenuItem itemLogout = new JMenuItem("Đăng xuất");
-        itemProfile.addActionListener(e -> new ProfileDialog(this, session.username()).setVisible(true));
+        itemProfile.addActionListener(e -> new ProfileDialog(this, session.username(), this::onMyAvatarChanged).setVisible(true));
         itemLogout.addActionListener(e -> {
             dispose();
             new LoginForm().setVisible(true);
@@ -244,6 +280,21 @@ public class ChatForm extends JFrame {
             }
         });
 
+        chatList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                // Renderer không nhận click -> tự tìm dòng được bấm
+                int index = chatList.locationToIndex(e.getPoint());
+                if (index < 0 || !chatList.getCellBounds(index, index).contains(e.getPoint())) {
+                    return;
+                }
+                DecryptedMessage m = messageModel.getElementAt(index);
+                if (SwingUtilities.isLeftMouseButton(e) && m.plaintext.startsWith("[FILE]:")) {
+                    onDownloadFile(m.plaintext);
+                }
+            }
+        });
+
         btnAddContact.addActionListener((var e) -> {
             String newMate = txtNewContact.getText().trim();
             if (newMate.isEmpty() || newMate.equals(session.username())) {
@@ -274,55 +325,21 @@ public class ChatForm extends JFrame {
         btnAttach.addActionListener(e -> onAttachFile());
 
         checkOfflineMessages();
-        startHeartbeat();
-        startMessagePolling();
+        startSubscription();
         loadContactList();
     }
 
-    // --- [MỚI] Helper load Avatar ---
-    private void loadAvatarToLabel(String username, JLabel label, int size) {
-        new SwingWorker<Icon, Void>() {
-            @Override
-            protected Icon doInBackground() {
-                byte[] bytes = authService.getUserAvatar(username);
-                return ImageUtils.createCircularAvatar(bytes, size);
-            }
-
-            @Override
-            protected void done() {
-                try {
-                    label.setIcon(get());
-                } catch (InterruptedException | ExecutionException e) {
-                }
-            }
-        }.execute();
+    // Vừa upload avatar: bỏ ảnh cũ trong cache rồi tải lại những chỗ đang hiện avatar của mình
+    private void onMyAvatarChanged() {
+        avatarLoader.invalidate(session.username());
+        loadAvatarToLabel(session.username(), lblMyAvatar, 50);
+        chatList.repaint();
+        contactList.repaint();
     }
 
-    private void getAvatarForChat(String username, Runnable onLoaded) {
-        if (avatarCache.containsKey(username)) {
-            if (onLoaded != null) {
-                onLoaded.run();
-            }
-            return;
-        }
-        new SwingWorker<Icon, Void>() {
-            @Override
-            protected Icon doInBackground() {
-                byte[] bytes = authService.getUserAvatar(username);
-                return ImageUtils.createCircularAvatar(bytes, 35); // Size nhỏ cho chat bubble
-            }
-
-            @Override
-            protected void done() {
-                try {
-                    avatarCache.put(username, get());
-                    if (onLoaded != null) {
-                        onLoaded.run();
-                    }
-                } catch (Exception e) {
-                }
-            }
-        }.execute();
+    // --- [MỚI] Helper load Avatar ---
+    private void loadAvatarToLabel(String username, JLabel label, int size) {
+        label.setIcon(avatarLoader.get(username, size, () -> label.setIcon(avatarLoader.get(username, size, null))));
     }
 
     // --- LOGIC GỬI FILE ---
@@ -336,10 +353,12 @@ public class ChatForm extends JFrame {
         int res = fileChooser.showOpenDialog(this);
         if (res == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-            if (file.length() > 10 * 1024 * 1024) {
-                JOptionPane.showMessageDialog(this, "File quá lớn! (Giới hạn demo 10MB)");
+            // Upload theo chunk nên bộ nhớ không phụ thuộc kích thước file
+            if (file.length() > MAX_FILE_BYTES) {
+                JOptionPane.showMessageDialog(this, "File quá lớn! (Giới hạn 1GB)");
                 return;
             }
+            String partner = currentPartner;
 
             // Lấy TTL từ UI để gửi xuống Backend -> Backend sẽ set ngày hết hạn
             TTLItem selectedTTL = (TTLItem) cboTTL.getSelectedItem();
@@ -348,8 +367,7 @@ public class ChatForm extends JFrame {
             new SwingWorker<Void, Void>() {
                 @Override
                 protected Void doInBackground() throws Exception {
-                    byte[] fileBytes = Files.readAllBytes(file.toPath());
-                    chatService.sendFile(session, currentPartner, fileBytes, file.getName(), ttlSeconds);
+                    chatService.sendFile(session, partner, file.toPath(), ttlSeconds);
                     return null;
                 }
 
@@ -357,7 +375,7 @@ public class ChatForm extends JFrame {
                 protected void done() {
                     try {
                         get();
-                        loadConversation();
+                        syncConversation();
                     } catch (InterruptedException | ExecutionException ex) {
                         JOptionPane.showMessageDialog(ChatForm.this, "Gửi file lỗi: " + ex.getMessage());
                     }
@@ -377,18 +395,33 @@ public class ChatForm extends JFrame {
 
             if (res == JFileChooser.APPROVE_OPTION) {
                 File saveFile = fileChooser.getSelectedFile();
-                new SwingWorker<Void, Void>() {
+                ProgressMonitor monitor = new ProgressMonitor(this, "Đang tải và giải mã...", fileName, 0, 100);
+                monitor.setMillisToDecideToPopup(300);
+                SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
                     @Override
                     protected Void doInBackground() throws Exception {
-                        byte[] data = chatService.downloadAndDecryptFile(protocolString);
-                        try (FileOutputStream fos = new FileOutputStream(saveFile)) {
-                            fos.write(data);
-                        }
+                        SwingWorker<Void, Void> self = this;
+                        // Giải mã từng chunk và ghi thẳng xuống đĩa
+                        chatService.downloadFileTo(protocolString, saveFile.toPath(), new ChatService.DownloadListener() {
+                            @Override
+                            public void onProgress(long bytesDone, long bytesTotal) {
+                                setProgress(bytesTotal > 0 ? (int) (bytesDone * 100 / bytesTotal) : 100);
+                            }
+
+                            @Override
+                            public boolean isCancelled() {
+                                return self.isCancelled();
+                            }
+                        });
                         return null;
                     }
 
                     @Override
                     protected void done() {
+                        monitor.close();
+                        if (isCancelled()) {
+                            return;
+                        }
                         try {
                             get();
                             JOptionPane.showMessageDialog(ChatForm.this, "Tải và giải mã thành công!\nLưu tại: " + saveFile.getAbsolutePath());
@@ -399,7 +432,16 @@ public class ChatForm extends JFrame {
                             JOptionPane.showMessageDialog(ChatForm.this, "Lỗi tải file (Có thể file đã hết hạn/bị xóa): " + ex.getMessage());
                         }
                     }
-                }.execute();
+                };
+                worker.addPropertyChangeListener(evt -> {
+                    if ("progress".equals(evt.getPropertyName())) {
+                        monitor.setProgress((Integer) evt.getNewValue());
+                    }
+                    if (monitor.isCanceled() && !worker.isDone()) {
+                        worker.cancel(false);
+                    }
+                });
+                worker.execute();
             }
         } catch (HeadlessException e) {
             JOptionPane.showMessageDialog(this, "Lỗi phân tích file: " + e.getMessage());
@@ -415,8 +457,7 @@ public class ChatForm extends JFrame {
         if (confirm == JOptionPane.YES_OPTION) {
             contactListModel.removeElement(selected);
             if (currentPartner != null && currentPartner.equals(selected.username)) {
-                chatAreaPanel.removeAll();
-                chatAreaPanel.repaint();
+                messageModel.clear();
                 lblCurrentPartner.setText("...");
                 currentPartner = null;
             }
@@ -455,106 +496,34 @@ public class ChatForm extends JFrame {
 
             @Override
             protected void done() {
-                loadConversation();
+                syncConversation();
                 loadContactList();
             }
         }.execute();
     }
 
-    private void addMessageBubble(DecryptedMessage m) {
-        boolean isMe = m.from.equals(session.username());
-        JPanel rowPanel = new JPanel(new FlowLayout(isMe ? FlowLayout.RIGHT : FlowLayout.LEFT));
-        rowPanel.setBackground(new Color(245, 245, 245));
-        rowPanel.setOpaque(false);
-        rowPanel.setMaximumSize(new Dimension(Short.MAX_VALUE, 100));
-
-        // --- Avatar ---
-        if (!avatarCache.containsKey(m.from)) {
-            // Nếu chưa có, load và vẽ lại UI sau
-            getAvatarForChat(m.from, () -> {
-                // Chỉ repaint nếu cần thiết, ở đây cache đã cập nhật, lần render sau sẽ có ảnh
-                chatAreaPanel.repaint();
-            });
-        }
-        Icon avatarIcon = avatarCache.getOrDefault(m.from, ImageUtils.createCircularAvatar(null, 35));
-        JLabel lblAvt = new JLabel(avatarIcon);
-
-        // --- Bubble ---
-        JPanel bubble = new JPanel();
-        bubble.setLayout(new BoxLayout(bubble, BoxLayout.Y_AXIS));
-        bubble.setBorder(new EmptyBorder(8, 12, 8, 12));
-        bubble.setBackground(isMe ? new Color(220, 248, 198) : Color.WHITE);
-        bubble.setBorder(BorderFactory.createLineBorder(Color.LIGHT_GRAY, 1, true));
-
-        // Nội dung tin nhắn
-        if (m.plaintext.startsWith("[FILE]:")) {
-            String[] parts = m.plaintext.split("\\|");
-            String fileName = (parts.length >= 4) ? parts[3] : "Unknown File";
-            JLabel lblInfo = new JLabel("📎 File đính kèm:");
-            lblInfo.setFont(new Font("Segoe UI", Font.ITALIC, 11));
-            JButton btnDownload = new JButton("📥 " + fileName);
-            btnDownload.setBackground(new Color(240, 240, 240));
-            btnDownload.addActionListener(e -> onDownloadFile(m.plaintext));
-            bubble.add(lblInfo);
-            bubble.add(Box.createVerticalStrut(2));
-            bubble.add(btnDownload);
-        } else {
-            JLabel lblContent = new JLabel("<html><body style='width: 250px'>" + m.plaintext + "</body></html>");
-            lblContent.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-            bubble.add(lblContent);
-        }
-
-        // Meta info
-        String statusText = m.signatureValid ? "✓" : "⚠";
-        Color statusColor = m.signatureValid ? new Color(0, 128, 0) : Color.RED;
-        JLabel lblMeta = new JLabel(statusText + " " + new SimpleDateFormat("HH:mm").format(new Date(m.ts)));
-        lblMeta.setFont(new Font("SansSerif", Font.PLAIN, 10));
-        lblMeta.setForeground(statusColor);
-        JPanel metaPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 0, 0));
-        metaPanel.setOpaque(false);
-        metaPanel.add(lblMeta);
-        metaPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
-        bubble.add(Box.createVerticalStrut(4));
-        bubble.add(metaPanel);
-
-        // Layout: Avatar + Bubble
-        if (!isMe) {
-            rowPanel.add(lblAvt);
-            rowPanel.add(bubble);
-        } else {
-            rowPanel.add(bubble);
-            // Không hiện avatar của mình bên phải cho gọn, hoặc thích thì bỏ comment dòng dưới
-            // rowPanel.add(lblAvt); 
-        }
-
-        chatAreaPanel.add(rowPanel);
-        chatAreaPanel.add(Box.createVerticalStrut(10));
-    }
-
     @Override
     public void dispose() {
-        if (heartbeatTimer != null) {
-            heartbeatTimer.stop();
-        }
-        if (pollingTimer != null) {
-            pollingTimer.stop();
+        if (subscription != null) {
+            subscription.stop();
         }
+        chatService.clearKeys();
         new Thread(() -> authService.logout(session.username())).start();
         super.dispose();
     }
 
     private void checkOfflineMessages() {
-        new SwingWorker<List<String>, Void>() {
+        new SwingWorker<Set<String>, Void>() {
             @Override
-            protected List<String> doInBackground() {
-                long lastLogout = authService.getLastLogoutTime(session.username());
-                return chatService.checkNewMessages(session.username(), lastLogout);
+            protected Set<String> doInBackground() {
+                // Các hội thoại còn tin chưa đọc (bảng tóm tắt, 1 query)
+                return chatService.getUnreadCounts(session.username()).keySet();
             }
 
             @Override
             protected void done() {
                 try {
-                    List<String> offlineSenders = get();
+                    Set<String> offlineSenders = get();
                     if (!offlineSenders.isEmpty()) {
                         unreadSenders.addAll(offlineSenders);
                         contactList.repaint();
@@ -565,8 +534,95 @@ public class ChatForm extends JFrame {
         }.execute();
     }
 
+    // Renderer dùng lại một bộ component duy nhất cho mọi dòng tin nhắn
+    private class MessageRenderer implements ListCellRenderer<DecryptedMessage> {
+
+        private final JPanel rowPanel = new JPanel();
+        private final FlowLayout rowLayout = new FlowLayout(FlowLayout.LEFT);
+        private final JLabel lblAvt = new JLabel();
+        private final JPanel bubble = new JPanel();
+        private final JLabel lblFile = new JLabel();
+        private final BubbleTextView textView = new BubbleTextView(new Font("Segoe UI", Font.PLAIN, 14));
+        private final JLabel lblMeta = new JLabel();
+        private final JPanel metaPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 0, 0));
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm");
+        // Cùng 1 callback cho mọi dòng -> AvatarLoader chỉ giữ 1 callback cho mỗi avatar đang tải
+        private final Runnable repaintList = chatList::repaint;
+
+        MessageRenderer() {
+            rowPanel.setLayout(rowLayout);
+            rowPanel.setOpaque(false);
+            rowPanel.setBorder(new EmptyBorder(0, 0, 10, 0));
+
+            bubble.setLayout(new BoxLayout(bubble, BoxLayout.Y_AXIS));
+            bubble.setBorder(BorderFactory.createLineBorder(Color.LIGHT_GRAY, 1, true));
+            lblMeta.setFont(new Font("SansSerif", Font.PLAIN, 10));
+            metaPanel.setOpaque(false);
+            metaPanel.add(lblMeta);
+            metaPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+            lblFile.setFont(new Font("Segoe UI", Font.BOLD, 13));
+            lblFile.setToolTipText("Nhấn để tải về");
+            lblFile.setAlignmentX(Component.LEFT_ALIGNMENT);
+            textView.setBorder(new EmptyBorder(2, 4, 0, 4));
+            bubble.add(lblFile);
+            bubble.add(textView);
+            bubble.add(Box.createVerticalStrut(4));
+            bubble.add(metaPanel);
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends DecryptedMessage> list, DecryptedMessage m,
+                                                      int index, boolean isSelected, boolean cellHasFocus) {
+            boolean isMe = m.from.equals(session.username());
+            rowLayout.setAlignment(isMe ? FlowLayout.RIGHT : FlowLayout.LEFT);
+            bubble.setBackground(isMe ? new Color(220, 248, 198) : Color.WHITE);
+
+            // Nội dung tin nhắn
+            if (m.plaintext.startsWith("[FILE]:")) {
+                String[] parts = m.plaintext.split("\\|");
+                String fileName = (parts.length >= 4) ? parts[3] : "Unknown File";
+                lblFile.setText("📎 " + fileName);
+                lblFile.setVisible(true);
+                textView.setVisible(false);
+            } else {
+                // Text thô, layout xuống dòng lấy từ cache theo (id, độ rộng)
+                textView.setText(m.id, m.plaintext, textWrapWidth);
+                textView.setVisible(true);
+                lblFile.setVisible(false);
+            }
+
+            // Meta info
+            lblMeta.setText((m.signatureValid ? "✓" : "⚠") + " " + timeFormat.format(new Date(m.ts)));
+            lblMeta.setForeground(m.signatureValid ? new Color(0, 128, 0) : Color.RED);
+
+            // Layout: Avatar + Bubble (không hiện avatar của mình cho gọn)
+            rowPanel.removeAll();
+            if (!isMe) {
+                // Chưa có thì load (gộp request theo user), xong sẽ vẽ lại
+                lblAvt.setIcon(avatarLoader.get(m.from, 35, repaintList));
+                rowPanel.add(lblAvt);
+            }
+            rowPanel.add(bubble);
+            return rowPanel;
+        }
+    }
+
+    // Danh sách tin nhắn không cho chọn dòng
+    private static class NoSelectionModel extends DefaultListSelectionModel {
+
+        @Override
+        public void setSelectionInterval(int index0, int index1) {
+        }
+
+        @Override
+        public void addSelectionInterval(int index0, int index1) {
+        }
+    }
+
     private class ContactRenderer extends DefaultListCellRenderer {
 
+        private final Runnable repaintList = contactList::repaint;
+
         @Override
         public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
             JPanel p = new JPanel(new BorderLayout(5, 5));
@@ -582,11 +638,7 @@ public class ChatForm extends JFrame {
             lblName.setFont(new Font("Segoe UI", Font.BOLD, 14));
 
             // Render avatar nhỏ trong danh sách
-            if (!avatarCache.containsKey(item.username)) {
-                getAvatarForChat(item.username, () -> list.repaint());
-            }
-            Icon icon = avatarCache.getOrDefault(item.username, ImageUtils.createCircularAvatar(null, 40));
-            JLabel lblIcon = new JLabel(icon);
+            JLabel lblIcon = new JLabel(avatarLoader.get(item.username, 40, repaintList));
 
             p.add(lblIcon, BorderLayout.WEST);
             p.add(lblName, BorderLayout.CENTER);
@@ -611,6 +663,8 @@ public class ChatForm extends JFrame {
             protected void done() {
                 try {
                     List<String> contacts = get();
+                    // Avatar của cả danh bạ trong 1 query thay vì mỗi dòng một query
+                    avatarLoader.prefetch(contacts, 40, contactList::repaint);
                     ContactItem currentSelection = contactList.getSelectedValue();
                     String currentName = (currentSelection != null) ? currentSelection.username : null;
                     contactListModel.clear();
@@ -634,84 +688,151 @@ public class ChatForm extends JFrame {
     private void switchToChat(String partner) {
         this.currentPartner = partner;
         lblCurrentPartner.setText("Đang chat với: " + partner);
+        messageModel.clear();
+        hasOlder = false;
+        hasNewerUnloaded = false;
         loadConversation();
     }
 
+    // Tải đầy đủ (khi mới mở hội thoại)
     private void loadConversation() {
         if (currentPartner == null) {
             return;
         }
+        String partner = currentPartner;
         new SwingWorker<List<DecryptedMessage>, Void>() {
             @Override
             protected List<DecryptedMessage> doInBackground() {
-                return chatService.loadConversation(session, currentPartner, 50);
+                return chatService.loadConversation(session, partner, PAGE_SIZE);
             }
 
             @Override
             protected void done() {
                 try {
-                    updateChatUI(get());
+                    if (partner.equals(currentPartner)) {
+                        updateChatUI(get());
+                    }
                 } catch (InterruptedException | ExecutionException e) {
                 }
             }
         }.execute();
     }
 
-    private void updateChatUI(List<DecryptedMessage> msgs) {
-        int currentCount = chatAreaPanel.getComponentCount();
-        if (currentCount > 0 && msgs.size() * 2 == (currentCount - 1)) {
+    // Đồng bộ delta: chỉ tải các tin sau tin cuối cùng đang hiển thị
+    private void syncConversation() {
+        if (currentPartner == null || syncInFlight || hasNewerUnloaded) {
+            // hasNewerUnloaded: đang xem lịch sử cũ, khi cuộn xuống cuối sẽ tải lại trang mới nhất
             return;
         }
+        if (messageModel.isEmpty()) {
+            loadConversation();
+            return;
+        }
+        String partner = currentPartner;
+        DecryptedMessage last = messageModel.last();
+        syncInFlight = true;
+        new SwingWorker<List<DecryptedMessage>, Void>() {
+            @Override
+            protected List<DecryptedMessage> doInBackground() {
+                return chatService.loadConversationSince(session, partner, last.ts, last.id);
+            }
+
+            @Override
+            protected void done() {
+                syncInFlight = false;
+                try {
+                    if (partner.equals(currentPartner)) {
+                        appendMessages(get());
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                }
+            }
+        }.execute();
+    }
+
+    private void updateChatUI(List<DecryptedMessage> msgs) {
+        messageModel.setAll(msgs);
+        hasOlder = msgs.size() >= PAGE_SIZE;
+        hasNewerUnloaded = false;
+        scrollToBottom();
+    }
 
-        chatAreaPanel.removeAll();
-        chatAreaPanel.add(Box.createVerticalGlue());
+    // Merge phía client: chỉ thêm các tin chưa có, model báo cho JList đúng khoảng mới
+    private void appendMessages(List<DecryptedMessage> msgs) {
+        List<DecryptedMessage> fresh = new ArrayList<>(msgs.size());
+        Set<String> seen = new HashSet<>();
         for (DecryptedMessage m : msgs) {
-            addMessageBubble(m);
+            if (m.id != null && (messageModel.containsId(m.id) || !seen.add(m.id))) {
+                continue;
+            }
+            fresh.add(m);
+        }
+        if (fresh.isEmpty()) {
+            return;
+        }
+        messageModel.append(fresh);
+        // Quá giới hạn -> bỏ bớt tin cũ nhất (cuộn lên sẽ tải lại)
+        int excess = messageModel.getSize() - MAX_LOADED_MESSAGES;
+        if (excess > 0) {
+            messageModel.removeFirst(excess);
+            hasOlder = true;
         }
-        chatAreaPanel.revalidate();
-        chatAreaPanel.repaint();
-        SwingUtilities.invokeLater(() -> chatScrollPane.getVerticalScrollBar().setValue(chatScrollPane.getVerticalScrollBar().getMaximum()));
+        scrollToBottom();
     }
 
-    private void startMessagePolling() {
-        lastCheckTime = System.currentTimeMillis();
-        pollingTimer = new Timer(2000, e -> {
-            if (currentPartner != null) {
-                loadConversation();
+    private void scrollToBottom() {
+        autoScrolling = true;
+        SwingUtilities.invokeLater(() -> {
+            JScrollBar bar = chatScrollPane.getVerticalScrollBar();
+            if (!messageModel.isEmpty()) {
+                chatList.ensureIndexIsVisible(messageModel.getSize() - 1);
             }
-            checkNotifications();
+            bar.setValue(bar.getMaximum());
+            autoScrolling = false;
         });
-        pollingTimer.start();
     }
 
-    private void checkNotifications() {
-        long now = System.currentTimeMillis();
-        new SwingWorker<List<String>, Void>() {
+    private void onChatScrolled() {
+        if (autoScrolling || currentPartner == null || messageModel.isEmpty()) {
+            return;
+        }
+        JScrollBar bar = chatScrollPane.getVerticalScrollBar();
+        if (bar.getMaximum() <= bar.getVisibleAmount()) {
+            return; // nội dung chưa đủ dài để cuộn
+        }
+        if (bar.getValue() == bar.getMinimum() && hasOlder && !loadingOlder) {
+            loadOlderMessages();
+        } else if (hasNewerUnloaded && bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum()) {
+            // Cuộn về cuối sau khi đã bỏ bớt tin mới -> tải lại trang mới nhất
+            hasNewerUnloaded = false;
+            loadConversation();
+        }
+    }
+
+    // Tải trang cũ hơn ở background rồi chèn lên đầu, giữ nguyên vị trí đang đọc
+    private void loadOlderMessages() {
+        String partner = currentPartner;
+        DecryptedMessage oldest = messageModel.first();
+        loadingOlder = true;
+        new SwingWorker<List<DecryptedMessage>, Void>() {
             @Override
-            protected List<String> doInBackground() {
-                return chatService.checkNewMessages(session.username(), lastCheckTime);
+            protected List<DecryptedMessage> doInBackground() {
+                return chatService.loadConversationBefore(session, partner, oldest.ts, oldest.id, PAGE_SIZE);
             }
 
             @Override
             protected void done() {
+                loadingOlder = false;
                 try {
-                    List<String> senders = get();
-                    boolean needRefresh = false;
-                    for (String sender : senders) {
-                        if (currentPartner == null || !currentPartner.equals(sender)) {
-                            if (!unreadSenders.contains(sender)) {
-                                showToast("Tin nhắn mới từ: " + sender);
-                                unreadSenders.add(sender);
-                                needRefresh = true;
-                            }
-                        }
+                    List<DecryptedMessage> page = get();
+                    if (!partner.equals(currentPartner) || messageModel.isEmpty() || messageModel.first() != oldest) {
+                        return;
                     }
-                    if (!senders.isEmpty()) {
-                        lastCheckTime = now;
-                        loadContactList();
+                    if (page.size() < PAGE_SIZE) {
+                        hasOlder = false;
                     }
-                    if (needRefresh) {
-                        contactList.repaint();
+                    if (!page.isEmpty()) {
+                        prependMessages(page);
                     }
                 } catch (InterruptedException | ExecutionException e) {
                 }
@@ -719,6 +840,56 @@ public class ChatForm extends JFrame {
         }.execute();
     }
 
+    private void prependMessages(List<DecryptedMessage> page) {
+        JScrollBar bar = chatScrollPane.getVerticalScrollBar();
+        int oldValue = bar.getValue();
+
+        messageModel.prepend(page);
+        // Quá giới hạn -> bỏ bớt tin mới nhất (khi cuộn xuống cuối sẽ tải lại)
+        int excess = messageModel.getSize() - MAX_LOADED_MESSAGES;
+        if (excess > 0) {
+            messageModel.removeLast(excess);
+            hasNewerUnloaded = true;
+        }
+
+        // Layout ngay để biết phần mới chèn cao bao nhiêu, rồi bù lại scroll
+        chatScrollPane.validate();
+        Rectangle inserted = chatList.getCellBounds(0, page.size() - 1);
+        if (inserted != null) {
+            bar.setValue(oldValue + inserted.height);
+        }
+    }
+
+    private void startSubscription() {
+        subscription = new SubscriptionService(session.username(), new SubscriptionService.Listener() {
+            @Override
+            public void onNewMessage(String from, String partner, long ts) {
+                SwingUtilities.invokeLater(() -> onIncomingMessage(from, partner));
+            }
+
+            @Override
+            public void onSessionChanged(String sessionId) {
+                if (!session.sessionId().equals(sessionId)) {
+                    SwingUtilities.invokeLater(() -> checkSessionStatus());
+                }
+            }
+        });
+        subscription.start();
+    }
+
+    private void onIncomingMessage(String from, String partner) {
+        if (partner.equals(currentPartner)) {
+            syncConversation();
+            return;
+        }
+        if (!from.equals(session.username()) && !unreadSenders.contains(from)) {
+            showToast("Tin nhắn mới từ: " + from);
+            unreadSenders.add(from);
+            contactList.repaint();
+        }
+        loadContactList();
+    }
+
     private void showToast(String msg) {
         JWindow toast = new JWindow();
         toast.setBackground(new Color(40, 40, 40, 220));
@@ -738,11 +909,6 @@ public class ChatForm extends JFrame {
         }).start();
     }
 
-    private void startHeartbeat() {
-        heartbeatTimer = new Timer(3000, e -> checkSessionStatus());
-        heartbeatTimer.start();
-    }
-
     private void checkSessionStatus() {
         new SwingWorker<Boolean, Void>() {
             @Override
@@ -4,6 +4,10 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.geom.Ellipse2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
 
 public class ImageUtils {
     // Tạo Avatar hình tròn
@@ -27,6 +31,30 @@ public class ImageUtils {
         }
     }
 
+    // Thu nhỏ + cắt vuông ở giữa, xuất PNG (dùng tạo thumbnail lúc upload)
+    public static byte[] createThumbnailPng(byte[] imageBytes, int size) {
+        try {
+            BufferedImage src = ImageIO.read(new ByteArrayInputStream(imageBytes));
+            if (src == null) return null;
+            int side = Math.min(src.getWidth(), src.getHeight());
+            int x = (src.getWidth() - side) / 2;
+            int y = (src.getHeight() - side) / 2;
+
+            BufferedImage thumb = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2 = thumb.createGraphics();
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g2.drawImage(src, 0, 0, size, size, x, y, x + side, y + side, null);
+            g2.dispose();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(thumb, "png", out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     private static Icon createDefaultAvatar(int size) {
         BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
         Graphics2D g2 = img.createGraphics();
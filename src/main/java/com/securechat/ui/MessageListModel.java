@@ -0,0 +1,98 @@
+package com.securechat.ui;
+
+import com.securechat.model.DecryptedMessage;
+
+import javax.swing.AbstractListModel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Model cho danh sách tin nhắn (JList ảo hóa).
+ * Chỉ bắn event cho đúng khoảng thay đổi (thêm cuối / chèn đầu / bỏ bớt)
+ * -> JList chỉ vẽ lại các dòng liên quan; chiều cao dòng đã đo được nhớ ở MessageListUI.
+ */
+public class MessageListModel extends AbstractListModel<DecryptedMessage> {
+
+    private final List<DecryptedMessage> items = new ArrayList<>();
+    private final Set<String> ids = new HashSet<>();
+
+    @Override
+    public int getSize() {
+        return items.size();
+    }
+
+    @Override
+    public DecryptedMessage getElementAt(int index) {
+        return items.get(index);
+    }
+
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    public DecryptedMessage first() {
+        return items.get(0);
+    }
+
+    public DecryptedMessage last() {
+        return items.get(items.size() - 1);
+    }
+
+    public boolean containsId(String id) {
+        return id != null && ids.contains(id);
+    }
+
+    public void setAll(Collection<DecryptedMessage> msgs) {
+        clear();
+        append(msgs);
+    }
+
+    public void append(Collection<DecryptedMessage> msgs) {
+        if (msgs.isEmpty()) return;
+        int start = items.size();
+        for (DecryptedMessage m : msgs) {
+            items.add(m);
+            if (m.id != null) ids.add(m.id);
+        }
+        fireIntervalAdded(this, start, items.size() - 1);
+    }
+
+    public void prepend(List<DecryptedMessage> msgs) {
+        if (msgs.isEmpty()) return;
+        items.addAll(0, msgs);
+        for (DecryptedMessage m : msgs) {
+            if (m.id != null) ids.add(m.id);
+        }
+        fireIntervalAdded(this, 0, msgs.size() - 1);
+    }
+
+    public void removeFirst(int n) {
+        n = Math.min(n, items.size());
+        if (n <= 0) return;
+        List<DecryptedMessage> head = items.subList(0, n);
+        for (DecryptedMessage m : head) ids.remove(m.id);
+        head.clear();
+        fireIntervalRemoved(this, 0, n - 1);
+    }
+
+    public void removeLast(int n) {
+        n = Math.min(n, items.size());
+        if (n <= 0) return;
+        int start = items.size() - n;
+        List<DecryptedMessage> tail = items.subList(start, items.size());
+        for (DecryptedMessage m : tail) ids.remove(m.id);
+        tail.clear();
+        fireIntervalRemoved(this, start, start + n - 1);
+    }
+
+    public void clear() {
+        int size = items.size();
+        if (size == 0) return;
+        items.clear();
+        ids.clear();
+        fireIntervalRemoved(this, 0, size - 1);
+    }
+}
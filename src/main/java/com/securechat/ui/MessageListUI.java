@@ -0,0 +1,79 @@
+package com.securechat.ui;
+
+import com.securechat.model.DecryptedMessage;
+
+import javax.swing.*;
+import javax.swing.plaf.basic.BasicListUI;
+import java.awt.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntSupplier;
+
+/**
+ * ListUI cho danh sách tin nhắn: nhớ kích thước từng dòng theo (id tin, nội dung, độ rộng xuống dòng).
+ * - BasicListUI đo lại mọi dòng qua renderer mỗi khi model đổi (thêm 1 tin = đo cả trăm bubble);
+ *   ở đây dòng đã đo chỉ tốn 1 lần tra map, renderer chỉ chạy cho tin mới / độ rộng mới.
+ * - Tin không có id thì luôn đo lại.
+ * Chỉ áp dụng cho JList VERTICAL không có fixedCellHeight (còn lại dùng nguyên BasicListUI). Chỉ dùng trên EDT.
+ */
+public class MessageListUI extends BasicListUI {
+
+    private static final int MAX_CACHED_ROWS = 2000;
+
+    // Có cả text: cùng id có thể đổi nội dung (vd. "(DECRYPT ERROR)" rồi giải mã lại được)
+    private record Key(String id, String text, int width) {}
+
+    private final IntSupplier wrapWidth;
+
+    // accessOrder = true -> LRU
+    private final Map<Key, Dimension> sizes = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Dimension> eldest) {
+            return size() > MAX_CACHED_ROWS;
+        }
+    };
+
+    /**
+     * @param wrapWidth độ rộng xuống dòng hiện tại của text trong bubble
+     */
+    public MessageListUI(IntSupplier wrapWidth) {
+        this.wrapWidth = wrapWidth;
+    }
+
+    // Gọi khi độ rộng xuống dòng đổi: tính lại layout mà không cần bắn contentsChanged cho mọi dòng
+    public void relayout() {
+        updateLayoutStateNeeded = modelChanged;
+        list.revalidate();
+        list.repaint();
+    }
+
+    @Override
+    protected void updateLayoutState() {
+        if (list.getLayoutOrientation() != JList.VERTICAL || list.getFixedCellHeight() != -1) {
+            super.updateLayoutState();
+            return;
+        }
+        ListModel<Object> model = list.getModel();
+        ListCellRenderer<? super Object> renderer = list.getCellRenderer();
+        int n = model.getSize();
+        int width = wrapWidth.getAsInt();
+        int maxWidth = 0;
+        cellHeight = -1;
+        cellHeights = new int[n];
+        for (int i = 0; i < n; i++) {
+            Object value = model.getElementAt(i);
+            Key key = (value instanceof DecryptedMessage m && m.id != null) ? new Key(m.id, m.plaintext, width) : null;
+            Dimension d = (key != null) ? sizes.get(key) : null;
+            if (d == null) {
+                Component c = renderer.getListCellRendererComponent(list, value, i, false, false);
+                rendererPane.add(c);
+                d = new Dimension(c.getPreferredSize());
+                if (key != null) sizes.put(key, d);
+            }
+            cellHeights[i] = d.height;
+            maxWidth = Math.max(maxWidth, d.width);
+        }
+        int fixedWidth = list.getFixedCellWidth();
+        cellWidth = (fixedWidth != -1) ? fixedWidth : maxWidth;
+    }
+}
@@ -8,11 +8,15 @@ import java.awt.*;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 public class ProfileDialog extends JDialog {
     private final AuthService authService = new AuthService();
     private final String username;
+    // Gọi trên EDT sau khi upload avatar xong (vd. ChatForm bỏ cache avatar của mình)
+    private final Runnable onAvatarChanged;
     
     // UI Components for Info
     private final JTextField txtEmail = new JTextField(20);
@@ -27,9 +31,10 @@ public class ProfileDialog extends JDialog {
     private final JPasswordField txtNewPass = new JPasswordField(20);
     private final JPasswordField txtConfirm = new JPasswordField(20);
 
-    public ProfileDialog(JFrame parent, String username) {
+    public ProfileDialog(JFrame parent, String username, Runnable onAvatarChanged) {
         super(parent, "Hồ sơ cá nhân: " + username, true);
         this.username = username;
+        this.onAvatarChanged = onAvatarChanged;
         setSize(500, 480);
         setLocationRelativeTo(parent);
         
@@ -126,7 +131,7 @@ public class ProfileDialog extends JDialog {
             byte[] avatarBytes;
             @Override protected Void doInBackground() {
                 profile = authService.getProfile(username);
-                avatarBytes = authService.getUserAvatar(username);
+                avatarBytes = authService.getAvatarThumb(username, 80).bytes();
                 return null;
             }
             @Override protected void done() {
@@ -154,9 +159,26 @@ public class ProfileDialog extends JDialog {
                 byte[] bytes = Files.readAllBytes(f.toPath());
                 // Preview ngay lập tức
                 lblAvatar.setIcon(ImageUtils.createCircularAvatar(bytes, 80));
-                // Upload ngầm
+                // Upload ngầm, kèm thumbnail đúng các kích thước hiển thị để client không phải tải ảnh gốc
                 new SwingWorker<Void, Void>(){
-                    @Override protected Void doInBackground() { authService.updateAvatar(username, bytes); return null; }
+                    @Override protected Void doInBackground() {
+                        Map<Integer, byte[]> thumbs = new HashMap<>();
+                        for (int size : AvatarLoader.THUMB_SIZES) {
+                            byte[] png = ImageUtils.createThumbnailPng(bytes, size);
+                            if (png != null) thumbs.put(size, png);
+                        }
+                        authService.updateAvatar(username, bytes, thumbs);
+                        return null;
+                    }
+
+                    @Override protected void done() {
+                        try {
+                            get();
+                            if (onAvatarChanged != null) onAvatarChanged.run();
+                        } catch (InterruptedException | ExecutionException ex) {
+                            JOptionPane.showMessageDialog(ProfileDialog.this, "Lỗi upload avatar: " + ex.getMessage());
+                        }
+                    }
                 }.execute();
             } catch (IOException ex) {}
         }
@@ -0,0 +1,159 @@
+package com.securechat.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * Microbenchmark cho CryptoEngines: so sánh engine lấy từ pool với getInstance() ở mỗi lần gọi
+ * (cách làm trước khi có pool). Chạy tay, không phải unit test:
+ *
+ *   mvn -q test-compile
+ *   java -cp target/classes:target/test-classes com.securechat.security.CryptoEnginesBench [rounds]
+ *
+ * Mỗi phép đo: warm-up rồi lấy ns/op tốt nhất trong "rounds" vòng (mặc định 5), 1 thread.
+ * Kết quả phụ thuộc máy / JDK, chỉ nên so sánh 2 cột trong cùng 1 lần chạy.
+ */
+public final class CryptoEnginesBench {
+    private CryptoEnginesBench() {}
+
+    private static final int WARMUP_OPS = 20_000;
+    private static final int OPS = 20_000;
+    private static final byte[] INFO = "SecureChat msg key".getBytes(StandardCharsets.UTF_8);
+
+    // Chống JIT bỏ kết quả không dùng
+    private static volatile int sink;
+
+    @FunctionalInterface
+    private interface Op {
+        int run(int i) throws GeneralSecurityException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+
+        byte[] key = Rand.bytes(32);
+        byte[] data = Rand.bytes(256);
+        byte[] aad = Rand.bytes(32);
+        byte[] shared = Rand.bytes(32);
+        byte[] salt = Rand.bytes(12);
+        KeyPair alice = Keys.genX25519();
+        KeyPair bob = Keys.genX25519();
+        byte[] bobPubX509 = bob.getPublic().getEncoded();
+        KeyPair signer = Keys.genEd25519();
+        byte[] digest = SHA256.hash(data);
+        byte[] sig = Keys.signEd25519(signer.getPrivate(), digest);
+
+        // IV khác nhau cho mỗi lần mã hóa: GCM từ chối dùng lại cặp key/IV
+        byte[] iv = new byte[12];
+
+        System.out.printf("%-32s %14s %14s%n", "ns/op (best of " + rounds + ")", "getInstance", "pooled");
+
+        report("AES-GCM encrypt+decrypt 256 B", rounds,
+                i -> {
+                    nextIv(iv);
+                    Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+                    c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, iv));
+                    c.updateAAD(aad);
+                    byte[] ct = c.doFinal(data);
+                    Cipher d = Cipher.getInstance("AES/GCM/NoPadding");
+                    d.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, iv));
+                    d.updateAAD(aad);
+                    return d.doFinal(ct)[0];
+                },
+                i -> {
+                    nextIv(iv);
+                    byte[] ct = AesGcm.encrypt(key, iv, data, aad);
+                    return AesGcm.decrypt(key, iv, ct, aad)[0];
+                });
+
+        report("HKDF deriveAes256", rounds,
+                i -> legacyHkdf(shared, salt, INFO)[0],
+                i -> HKDF.deriveAes256(shared, salt, INFO)[0]);
+
+        report("X25519 public key decode", rounds,
+                i -> KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(bobPubX509)).hashCode(),
+                i -> KeyProtector.decodeX25519Public(bobPubX509).hashCode());
+
+        report("SHA-256 256 B", rounds,
+                i -> MessageDigest.getInstance("SHA-256").digest(data)[0],
+                i -> SHA256.hash(data)[0]);
+
+        report("X25519 agree", rounds,
+                i -> {
+                    KeyAgreement ka = KeyAgreement.getInstance("X25519");
+                    ka.init(alice.getPrivate());
+                    ka.doPhase(bob.getPublic(), true);
+                    return ka.generateSecret()[0];
+                },
+                i -> Keys.x25519SharedSecret(alice.getPrivate(), bob.getPublic())[0]);
+
+        report("Ed25519 verify", rounds,
+                i -> {
+                    Signature s = Signature.getInstance("Ed25519");
+                    s.initVerify(signer.getPublic());
+                    s.update(digest);
+                    return s.verify(sig) ? 1 : 0;
+                },
+                i -> Keys.verifyEd25519(signer.getPublic(), digest, sig) ? 1 : 0);
+    }
+
+    // HKDF như trước khi có pool: Mac mới cho extract và cho expand, okm nối dần từng khối
+    private static byte[] legacyHkdf(byte[] ikm, byte[] salt, byte[] info) throws GeneralSecurityException {
+        Mac extract = Mac.getInstance("HmacSHA256");
+        extract.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] prk = extract.doFinal(ikm);
+        Mac expand = Mac.getInstance("HmacSHA256");
+        expand.init(new SecretKeySpec(prk, "HmacSHA256"));
+        byte[] okm = new byte[0];
+        byte[] t = new byte[0];
+        for (int counter = 1; okm.length < 32; counter++) {
+            expand.update(t);
+            expand.update(info);
+            expand.update((byte) counter);
+            t = expand.doFinal();
+            byte[] grown = Arrays.copyOf(okm, okm.length + t.length);
+            System.arraycopy(t, 0, grown, okm.length, t.length);
+            okm = grown;
+        }
+        return Arrays.copyOf(okm, 32);
+    }
+
+    private static long ivCounter;
+
+    private static void nextIv(byte[] iv) {
+        ByteBuffer.wrap(iv).putLong(4, ++ivCounter);
+    }
+
+    private static void report(String name, int rounds, Op old, Op pooled) throws GeneralSecurityException {
+        System.out.printf("%-32s %14.0f %14.0f%n", name, measure(old, rounds), measure(pooled, rounds));
+    }
+
+    private static double measure(Op op, int rounds) throws GeneralSecurityException {
+        int acc = 0;
+        for (int i = 0; i < WARMUP_OPS; i++) {
+            acc += op.run(i);
+        }
+        double best = Double.MAX_VALUE;
+        for (int r = 0; r < rounds; r++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < OPS; i++) {
+                acc += op.run(i);
+            }
+            best = Math.min(best, (System.nanoTime() - t0) / (double) OPS);
+        }
+        sink = acc;
+        return best;
+    }
+}